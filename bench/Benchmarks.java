@@ -0,0 +1,264 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * benchmarks of loading, saving and collection commands on generated save files,
+ * compile together with src and run from the project directory:
+ * javac -encoding UTF-8 -d out src/*.java bench/*.java && java -cp out Benchmarks
+ *
+ * settings are taken from environment:
+ * BENCH_ROWS comma separated sizes of datasets, 10000,100000,1000000 by default (up to 10000000 is fine with enough heap),
+ * BENCH_WARMUP and BENCH_ITERATIONS number of untimed and timed runs, 3 and 5 by default,
+ * BENCH_FILTER only run benchmarks with names containing it,
+ * BENCH_DIR where datasets are generated, temp directory by default,
+ * BENCH_OUT file to append results to as csv so runs of different releases can be compared.
+ * STORE, LOAD_MODE, SAVE_FORMAT and JOURNAL apply to the benchmarked lab as usual
+ */
+public class Benchmarks {
+
+    private static final long SEED = 42;
+
+    private static final int BATCH = 1000;
+
+    private static final long DAY = 86_400_000L;
+
+    private static final long FIRST_DAY = 1_609_459_200_000L;
+
+    private final Charset charset = Charset.defaultCharset();
+
+    private final PrintStream blackhole = new PrintStream(new Sink(), false, charset);
+
+    private final int warmup = intEnv("BENCH_WARMUP", 3);
+
+    private final int iterations = intEnv("BENCH_ITERATIONS", 5);
+
+    private final String filter = System.getenv("BENCH_FILTER");
+
+    private final String resultFile = System.getenv("BENCH_OUT");
+
+    private final List<String> results = new ArrayList<>();
+
+    private Path dataset;
+
+    private Path saveFile;
+
+    private int rows;
+
+    /**
+     * operation measured once per iteration
+     */
+    private interface Operation {
+        void run(Lab lab) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String sizes = System.getenv("BENCH_ROWS");
+        Path dir = Paths.get(System.getenv("BENCH_DIR") == null ? System.getProperty("java.io.tmpdir") : System.getenv("BENCH_DIR"));
+        Benchmarks benchmarks = new Benchmarks();
+        System.out.printf("%-34s %10s %12s %10s %12s %14s%n", "benchmark", "rows", "mean ms", "+- ms", "min ms", "ops/s");
+        for (String size : (sizes == null ? "10000,100000,1000000" : sizes).split(",")) {
+            benchmarks.runAll(dir, Integer.parseInt(size.trim()));
+        }
+        benchmarks.writeResults();
+    }
+
+    /**
+     * generate dataset of given size and run every benchmark on it
+     * @param dir for dataset
+     * @param rows number of marines
+     */
+    private void runAll(Path dir, int rows) throws Exception {
+        this.rows = rows;
+        dataset = dir.resolve("marines-" + rows + ".csv");
+        saveFile = dir.resolve("marines-" + rows + "-bench.csv");
+        if (!Files.exists(dataset)) {
+            generate(dataset, rows);
+        }
+        int half = rows / 2;
+
+        Lab loaded = freshLab();
+        bench("read_file", 1, false, lab -> load());
+        bench("save", 1, false, lab -> {
+            run(lab, "save\n");
+            lab.awaitSave();
+        });
+        bench("insert", BATCH, true, lab -> run(lab, insertScript()));
+        bench("update_by_id", BATCH, true, lab -> run(lab, updateScript()));
+        bench("remove_lower", 1, true, lab -> run(lab, "remove_lower\n" + marineLines("probe", 50.5f)));
+        bench("remove_lower_key", 1, true, lab -> run(lab, "remove_lower_key " + half + "\n"));
+        benchOn(loaded, "print_ascending", "print_ascending\n");
+        benchOn(loaded, "group_counting_by_creation_date", "group_counting_by_creation_date\n");
+        benchOn(loaded, "filter_greater_than_category", "filter_greater_than_category\nAGGRESSOR\n");
+        Files.deleteIfExists(saveFile);
+        Files.deleteIfExists(Paths.get(saveFile + ".journal"));
+        Files.deleteIfExists(Paths.get(saveFile + ".journal.1"));
+    }
+
+    /**
+     * measure read-only command, all iterations share one loaded lab
+     */
+    private void benchOn(Lab loaded, String name, String script) throws Exception {
+        bench(name, 1, false, lab -> run(loaded, script));
+    }
+
+    /**
+     * @param name of benchmark
+     * @param operations done in one run, to report time per operation
+     * @param fresh true if every run needs a newly loaded lab because it changes the collection
+     * @param operation to measure
+     */
+    private void bench(String name, int operations, boolean fresh, Operation operation) throws Exception {
+        if (filter != null && !name.contains(filter)) {
+            return;
+        }
+        Lab lab = fresh ? null : freshLab();
+        double[] millis = new double[iterations];
+        for (int i = -warmup; i < iterations; i++) {
+            if (fresh) {
+                lab = freshLab();
+            }
+            System.gc();
+            long start = System.nanoTime();
+            operation.run(lab);
+            long time = System.nanoTime() - start;
+            if (i >= 0) {
+                millis[i] = time / 1e6;
+            }
+        }
+        double mean = Arrays.stream(millis).average().orElse(0);
+        double deviation = Math.sqrt(Arrays.stream(millis).map(m -> (m - mean) * (m - mean)).sum() / Math.max(iterations - 1, 1));
+        double min = Arrays.stream(millis).min().orElse(0);
+        double opsPerSecond = operations * 1000 / mean;
+        System.out.printf(Locale.ROOT, "%-34s %10d %12.3f %10.3f %12.3f %14.1f%n", name, rows, mean, deviation, min, opsPerSecond);
+        results.add(String.format(Locale.ROOT, "%s,%d,%d,%.3f,%.3f,%.3f,%.1f", name, rows, operations, mean, deviation, min, opsPerSecond));
+    }
+
+    /**
+     * @return lab with the dataset loaded from its own copy, so saving doesn't touch the dataset
+     */
+    private Lab freshLab() throws Exception {
+        Files.copy(dataset, saveFile, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(Paths.get(saveFile + ".journal"));
+        Files.deleteIfExists(Paths.get(saveFile + ".journal.1"));
+        return load();
+    }
+
+    private Lab load() throws CustomFileException {
+        Lab lab = new Lab(saveFile.toString());
+        lab.readFile();
+        return lab;
+    }
+
+    private void run(Lab lab, String script) {
+        lab.interact(new Scanner(script), blackhole, true);
+        blackhole.flush();
+    }
+
+    /**
+     * @return script inserting a batch of new keys after the generated ones
+     */
+    private String insertScript() {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < BATCH; i++) {
+            script.append("insert ").append(rows + i).append('\n').append(marineLines("new" + i, 1 + i % 100));
+        }
+        return script.toString();
+    }
+
+    /**
+     * @return script updating a batch of ids spread over the collection
+     */
+    private String updateScript() {
+        StringBuilder script = new StringBuilder();
+        Random random = new Random(SEED);
+        for (int i = 0; i < BATCH; i++) {
+            script.append("update ").append(1 + random.nextInt(rows)).append('\n').append(marineLines("upd" + i, 1 + i % 100));
+        }
+        return script.toString();
+    }
+
+    /**
+     * @return answers to the questions of reading a marine
+     */
+    private static String marineLines(String name, float health) {
+        return name + "\n1.5\n2.5\n" + health + "\nTACTICAL\nBOLTGUN\nCHAIN_AXE\ny\nUltramarines\nMacragge\n";
+    }
+
+    /**
+     * write save file with given number of random but reproducible marines, key i has id i + 1
+     * @param file to write
+     * @param rows number of marines
+     */
+    private void generate(Path file, int rows) throws IOException {
+        Random random = new Random(SEED);
+        AstartesCategory[] categories = AstartesCategory.values();
+        Weapon[] weapons = Weapon.values();
+        MeleeWeapon[] meleeWeapons = MeleeWeapon.values();
+        Path tmp = Paths.get(file + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, charset)) {
+            for (long key = 0; key < rows; key++) {
+                int category = random.nextInt(categories.length + 1);
+                int chapter = random.nextInt(200);
+                SpaceMarine marine = new SpaceMarine(key + 1, "marine" + key,
+                        new Coordinates(random.nextInt(2000) - 1000, (double) random.nextInt(2000) - 1000),
+                        FIRST_DAY + random.nextInt(1000) * DAY,
+                        1 + random.nextInt(10000) / 100f,
+                        category == categories.length ? null : categories[category],
+                        weapons[random.nextInt(weapons.length)],
+                        meleeWeapons[random.nextInt(meleeWeapons.length)],
+                        chapter < 100 ? new Chapter("chapter" + chapter, chapter % 3 == 0 ? null : "world" + chapter) : null);
+                writer.write(MarineCsv.format(key, marine));
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void writeResults() throws IOException {
+        if (resultFile == null) {
+            return;
+        }
+        Path path = Paths.get(resultFile);
+        boolean header = !Files.exists(path);
+        try (PrintStream out = new PrintStream(Files.newOutputStream(path,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), false, charset)) {
+            if (header) {
+                out.println("benchmark,rows,operations,mean_ms,deviation_ms,min_ms,ops_per_s");
+            }
+            results.forEach(out::println);
+        }
+    }
+
+    private static int intEnv(String name, int orElse) {
+        try {
+            return Integer.parseInt(System.getenv(name));
+        } catch (NumberFormatException e) {
+            return orElse;
+        }
+    }
+
+    /**
+     * stream throwing away everything but still making the printers do their work
+     */
+    private static class Sink extends OutputStream {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    }
+}
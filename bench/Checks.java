@@ -0,0 +1,359 @@
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * randomized checks of hand-written parts against plain reference implementations,
+ * compile together with src and run from the project directory:
+ * javac -encoding UTF-8 -d out src/*.java bench/*.java && java -cp out Checks
+ *
+ * settings are taken from environment:
+ * CHECK_SEED seed of random cases, 1 by default,
+ * CHECK_LINES number of random lines given to the csv splitter, 2000000 by default,
+ * CHECK_ROWS number of marines in checked collections, 20000 by default,
+ * CHECK_FILTER only run checks with names containing it.
+ * Every check prints number of cases and mismatches with a few of them, exit status is 1 if any check failed
+ */
+public class Checks {
+
+    private static final int MAX_SHOWN = 5;
+
+    private final long seed = intEnv("CHECK_SEED", 1);
+
+    private final int lines = intEnv("CHECK_LINES", 2_000_000);
+
+    private final int rows = intEnv("CHECK_ROWS", 20000);
+
+    private final String filter = System.getenv("CHECK_FILTER");
+
+    private int failed = 0;
+
+    private String name;
+
+    private long cases;
+
+    private int mismatches;
+
+    /**
+     * check run with its own random cases
+     */
+    private interface Check {
+        void run(Random random) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Checks checks = new Checks();
+        checks.check("csv_fields", checks::csvFields);
+        checks.check("date_codec", checks::dateCodec);
+        checks.check("long_int_map", checks::longIntMap);
+        checks.check("query_plans", checks::queryPlans);
+        checks.check("top_bottom_k", checks::topBottomK);
+        checks.check("spatial_grid", checks::spatialGrid);
+        System.exit(checks.failed == 0 ? 0 : 1);
+    }
+
+    private void check(String name, Check check) throws Exception {
+        if (filter != null && !name.contains(filter)) {
+            return;
+        }
+        this.name = name;
+        cases = 0;
+        mismatches = 0;
+        long start = System.nanoTime();
+        check.run(new Random(seed));
+        System.out.printf("%-14s %10d cases %6d mismatches %8d ms%n", name, cases, mismatches, (System.nanoTime() - start) / 1_000_000);
+        if (mismatches > 0) {
+            failed++;
+        }
+    }
+
+    /**
+     * compare result of one case with the expected one
+     */
+    private void expect(Object expected, Object actual, String description) {
+        cases++;
+        if (!expected.equals(actual)) {
+            if (mismatches++ < MAX_SHOWN) {
+                System.out.println("  " + name + ": " + description + ": expected " + expected + ", got " + actual);
+            }
+        }
+    }
+
+    /**
+     * MarineCsv splitting behind keyAndId against the regular expression splitting it replaced
+     */
+    private void csvFields(Random random) {
+        String[] tokens = {"12", "-3", "\"45\"", "\"-6\"", "null", "\"null\"", "", "\"", "\"7", "8\"", "\"\"", "1 2", "n", "-"};
+        String[] spaces = {"", "", " ", "  "};
+        for (int i = 0; i < lines; i++) {
+            StringBuilder line = new StringBuilder();
+            int count = 1 + random.nextInt(4);
+            for (int j = 0; j < count; j++) {
+                if (j > 0) {
+                    line.append(spaces[random.nextInt(spaces.length)]).append(',').append(spaces[random.nextInt(spaces.length)]);
+                }
+                line.append(tokens[random.nextInt(tokens.length)]);
+            }
+            String expected;
+            String actual;
+            try {
+                String[] fields = regexFields(line.toString());
+                expected = fields.length != 2 ? "error" : Arrays.toString(new long[] {Long.parseLong(fields[0]), Long.parseLong(fields[1])});
+            } catch (CustomFileException | NumberFormatException e) {
+                expected = "error";
+            }
+            try {
+                actual = Arrays.toString(MarineCsv.keyAndId(line.toString()));
+            } catch (CustomFileException e) {
+                actual = "error";
+            }
+            expect(expected, actual, "[" + line + "]");
+        }
+    }
+
+    private static String[] regexFields(String line) throws CustomFileException {
+        String[] fields = line.split(" *, *");
+        if (Arrays.stream(fields).anyMatch(s -> !(s.startsWith("\"") == s.endsWith("\"")))) {
+            throw new CustomFileException("bad quoting");
+        }
+        return Arrays.stream(fields).map(s -> s.equals("null") ? null : s.replaceAll("^\"|\"$", "")).toArray(String[]::new);
+    }
+
+    /**
+     * DateCodec against lenient SimpleDateFormat it replaced, days and months out of range roll over
+     */
+    private void dateCodec(Random random) throws ParseException {
+        SimpleDateFormat format = new SimpleDateFormat("dd-MM-yy");
+        for (int i = 0; i < 200_000; i++) {
+            String text = String.format("%02d-%02d-%02d", random.nextInt(100), random.nextInt(100), random.nextInt(100));
+            long expected = format.parse(text).getTime();
+            expect(expected, DateCodec.parse(text), "parse " + text);
+            expect(format.format(expected), DateCodec.format(expected), "format " + expected);
+        }
+        for (String text : new String[]{"999999999-01-999999999", "01-01-999999999", "1-2", "aa-01-21", "01-01-21x"}) {
+            String actual;
+            try {
+                actual = String.valueOf(DateCodec.parse(text));
+            } catch (IllegalArgumentException e) {
+                actual = "not a date";
+            }
+            expect("not a date", actual, "parse " + text);
+        }
+    }
+
+    /**
+     * LongIntMap against HashMap, keys crowd into few slots so removals shift long probe chains back
+     */
+    private void longIntMap(Random random) {
+        for (int round = 0; round < 50; round++) {
+            LongIntMap map = new LongIntMap(random.nextInt(64));
+            Map<Long, Integer> expected = new HashMap<>();
+            int spread = 1 + random.nextInt(4096);
+            for (int i = 0; i < 20_000; i++) {
+                long key = (random.nextInt(spread) - spread / 2) * (random.nextBoolean() ? 1L : 1L << 32);
+                int operation = random.nextInt(10);
+                if (operation < 5) {
+                    int value = random.nextInt(Integer.MAX_VALUE);
+                    map.put(key, value);
+                    expected.put(key, value);
+                }
+                else if (operation < 9) {
+                    map.remove(key);
+                    expected.remove(key);
+                }
+                else if (random.nextInt(100) == 0) {
+                    map = new LongIntMap(map);
+                }
+                expect(expected.getOrDefault(key, LongIntMap.MISSING), map.get(key), "get " + key + " in round " + round);
+            }
+            expect(expected.size(), map.size(), "size in round " + round);
+            for (Map.Entry<Long, Integer> e : expected.entrySet()) {
+                expect(e.getValue(), map.get(e.getKey()), "get " + e.getKey() + " after round " + round);
+            }
+        }
+    }
+
+    /**
+     * every plan of random queries finds the same marines as scan of hash store, on every kind of store
+     */
+    private void queryPlans(Random random) {
+        List<Map.Entry<Long, SpaceMarine>> marines = generate(random);
+        MarineCollection reference = collection(new HashMap<>(), marines);
+        List<MarineCollection> stores = List.of(reference, collection(new TreeMap<>(), marines), collection(new ColumnarMarineMap(), marines));
+        String[] atoms = {"health < 30", "health >= 50.5", "health = 42.5", "health > 20", "health <= 70", "health != 42.5",
+                "key < 1000", "key >= " + rows, "key = 17", "key > " + (rows * 2 - 10), "key != 3", "key > 5 and key < 3",
+                "key >= 100 and key <= 100", "key > 100 and key < 101", "health > 60 and health < 40",
+                "id = 12", "id = 999999999", "category = TACTICAL", "category = null", "category != null",
+                "category > AGGRESSOR", "category < TERMINATOR", "category = TACTICAL and category = null",
+                "weapon = BOLTGUN", "melee != CHAIN_AXE", "chapter.world = World3", "chapter.world = null", "chapter.name = null",
+                "x > 50", "y <= 20", "x = 7", "name = name10", "creation_date = 11-02-21", "creation_date < 15-02-21",
+                "creation_date = 11-02-1921", "creation_date < 01-01-1950", "creation_date >= 01-02-1921"};
+        for (int i = 0; i < 300; i++) {
+            StringBuilder text = new StringBuilder();
+            int parts = 1 + random.nextInt(3);
+            for (int j = 0; j < parts; j++) {
+                if (j > 0) {
+                    text.append(random.nextInt(4) == 0 ? " or " : " and ");
+                }
+                text.append(atoms[random.nextInt(atoms.length)]);
+            }
+            if (random.nextInt(5) == 0) {
+                text.insert(0, "(").append(") and health < 90");
+            }
+            Query query = Query.parse(text.toString());
+            expect(query.toString(), Query.parse(query.toString()).toString(), "query read back from its text");
+            Set<Long> expected = new TreeSet<>();
+            Query.Plan scan = query.plans(reference).stream().filter(p -> p.toString().startsWith("scan")).findFirst().orElseThrow();
+            query.run(scan, (key, marine) -> expected.add(key));
+            for (MarineCollection store : stores) {
+                for (Query.Plan plan : query.plans(store)) {
+                    Set<Long> found = new TreeSet<>();
+                    query.run(plan, (key, marine) -> found.add(key));
+                    expect(expected, found, text + " by " + plan + " on " + store.storeType());
+                }
+            }
+        }
+    }
+
+    /**
+     * top_k and bottom_k walks against sorting all marines by SpaceMarine.compareTo and key
+     */
+    private void topBottomK(Random random) {
+        List<Map.Entry<Long, SpaceMarine>> marines = generate(random);
+        List<Map.Entry<Long, SpaceMarine>> sorted = new ArrayList<>(marines);
+        sorted.sort(Comparator.comparing((Map.Entry<Long, SpaceMarine> e) -> e.getValue()).thenComparing(Map.Entry::getKey));
+        List<Long> ascending = sorted.stream().map(Map.Entry::getKey).collect(Collectors.toList());
+        List<Long> descending = new ArrayList<>(ascending);
+        Collections.reverse(descending);
+        for (MarineCollection store : List.of(collection(new HashMap<>(), marines), collection(new ColumnarMarineMap(), marines))) {
+            for (int k : new int[]{1, 2, 7, 100, rows / 3, rows, rows + 5}) {
+                List<Long> weakest = new ArrayList<>();
+                store.forEachWeakest(k, (key, marine) -> weakest.add(key));
+                expect(ascending.subList(0, Math.min(k, ascending.size())), weakest, "bottom_k " + k + " on " + store.storeType());
+                List<Long> strongest = new ArrayList<>();
+                store.forEachStrongest(k, (key, marine) -> strongest.add(key));
+                expect(descending.subList(0, Math.min(k, descending.size())), strongest, "top_k " + k + " on " + store.storeType());
+            }
+        }
+    }
+
+    /**
+     * within and nearest of the grid against checking every point, while points are added and removed
+     */
+    private void spatialGrid(Random random) {
+        for (int round = 0; round < 40; round++) {
+            SpatialGrid grid = new SpatialGrid();
+            Map<Long, double[]> points = new HashMap<>();
+            int layout = round % 4;
+            int count = 1 + random.nextInt(round < 20 ? 300 : 5000);
+            for (int i = 0; i < count * 2; i++) {
+                long key = random.nextInt(count) - count / 3;
+                double[] old = points.remove(key);
+                if (old != null) {
+                    grid.remove(key, old[0], old[1]);
+                    continue;
+                }
+                double[] point = point(random, layout);
+                points.put(key, point);
+                grid.add(key, point[0], point[1]);
+                if (i % 97 == 0) {
+                    spatialQueries(random, grid, points, layout);
+                }
+            }
+            spatialQueries(random, grid, points, layout);
+        }
+    }
+
+    /**
+     * @param layout 0 for small integer grid, 1 for thin strip, 2 for far outliers, 3 for many equal points
+     */
+    private static double[] point(Random random, int layout) {
+        switch (layout) {
+            case 0: return new double[]{random.nextInt(100), random.nextInt(100)};
+            case 1: return new double[]{random.nextGaussian() * 1e6, random.nextGaussian() * 0.01};
+            case 2: return new double[]{random.nextInt(5) == 0 ? (random.nextBoolean() ? 1e300 : -1e300) : random.nextDouble(), random.nextDouble() * 10};
+            default: return new double[]{3, random.nextInt(3)};
+        }
+    }
+
+    private void spatialQueries(Random random, SpatialGrid grid, Map<Long, double[]> points, int layout) {
+        double scale = layout == 1 ? 1e6 : 100;
+        for (int i = 0; i < 5; i++) {
+            double x1 = (random.nextDouble() - 0.3) * scale;
+            double y1 = (random.nextDouble() - 0.3) * scale;
+            double x2 = (random.nextDouble() - 0.3) * scale;
+            double y2 = (random.nextDouble() - 0.3) * scale;
+            Set<Long> inside = new TreeSet<>();
+            points.forEach((key, p) -> {
+                if (p[0] >= Math.min(x1, x2) && p[0] <= Math.max(x1, x2) && p[1] >= Math.min(y1, y2) && p[1] <= Math.max(y1, y2)) {
+                    inside.add(key);
+                }
+            });
+            Set<Long> found = new TreeSet<>();
+            grid.forEachWithin(x1, y1, x2, y2, found::add);
+            expect(inside, found, "within " + x1 + " " + y1 + " " + x2 + " " + y2 + " of layout " + layout);
+
+            int k = 1 + random.nextInt(20);
+            List<Long> keys = new ArrayList<>(points.keySet());
+            keys.sort(Comparator.comparing((Long key) -> distance(points.get(key), x1, y1)).thenComparing(key -> key));
+            List<Long> nearest = new ArrayList<>();
+            for (long key : grid.nearest(k, x1, y1)) {
+                nearest.add(key);
+            }
+            expect(keys.subList(0, Math.min(k, keys.size())), nearest, "nearest " + k + " " + x1 + " " + y1 + " of layout " + layout);
+        }
+    }
+
+    private static double distance(double[] point, double x, double y) {
+        double dx = point[0] - x;
+        double dy = point[1] - y;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * @return marines with keys spread over twice their number, repeating health and small coordinates so ties are common
+     */
+    private List<Map.Entry<Long, SpaceMarine>> generate(Random random) {
+        Map<Long, SpaceMarine> marines = new TreeMap<>();
+        AstartesCategory[] categories = AstartesCategory.values();
+        Weapon[] weapons = Weapon.values();
+        MeleeWeapon[] meleeWeapons = MeleeWeapon.values();
+        long firstDay = DateCodec.parse("01-02-21");
+        // a century earlier, out of the two-digit year window
+        long firstOldDay = DateCodec.parse("01-02-1921");
+        while (marines.size() < rows) {
+            long key = random.nextInt(rows * 2);
+            Chapter chapter = random.nextInt(3) == 0 ? null : new Chapter("Chapter" + random.nextInt(40), random.nextInt(5) == 0 ? null : "World" + random.nextInt(8));
+            marines.put(key, new SpaceMarine(key + 1, "name" + random.nextInt(rows), new Coordinates(random.nextInt(100), (double) random.nextInt(100)),
+                    (random.nextInt(10) == 0 ? firstOldDay : firstDay) + random.nextInt(28) * 86_400_000L, 1 + random.nextInt(200) / 2f,
+                    random.nextInt(4) == 0 ? null : categories[random.nextInt(categories.length)],
+                    weapons[random.nextInt(weapons.length)], meleeWeapons[random.nextInt(meleeWeapons.length)], chapter));
+        }
+        return new ArrayList<>(marines.entrySet());
+    }
+
+    private static MarineCollection collection(Map<Long, SpaceMarine> store, List<Map.Entry<Long, SpaceMarine>> marines) {
+        MarineCollection collection = new MarineCollection(store);
+        marines.forEach(e -> collection.put(e.getKey(), e.getValue()));
+        return collection;
+    }
+
+    private static int intEnv(String name, int orElse) {
+        try {
+            return Integer.parseInt(System.getenv(name));
+        } catch (NumberFormatException e) {
+            return orElse;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * keeps keys of marines changed since the last saved snapshot and asks for a save when enough of them changed
+ * or when the interval passed with some of them changed, nothing is saved while nothing changed.
+ * Changing one marine many times counts once
+ */
+public class Autosave implements MarineCollection.MutationListener {
+
+    private final BackgroundSaver saver;
+
+    private final long intervalSeconds;
+
+    private final int changesLimit;
+
+    private Set<Long> dirty = new HashSet<>();
+
+    private boolean cleared = false;
+
+    /**
+     * changes taken by the save being written, given back if it fails
+     */
+    private Set<Long> saving = new HashSet<>();
+
+    private boolean savingCleared = false;
+
+    private boolean requested = false;
+
+    private ScheduledExecutorService timer;
+
+    /**
+     * standart constructor
+     * @param saver to ask for saves
+     * @param intervalSeconds how often changes are saved, 0 for never
+     * @param changesLimit number of changed marines saved at once, 0 for no limit
+     */
+    public Autosave(BackgroundSaver saver, long intervalSeconds, int changesLimit) {
+        this.saver = saver;
+        this.intervalSeconds = intervalSeconds;
+        this.changesLimit = changesLimit;
+    }
+
+    /**
+     * start saving on interval if it's set
+     */
+    public void start() {
+        if (intervalSeconds <= 0 || timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "autosave");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this::requestIfDirty, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return true if autosave is on
+     */
+    public boolean enabled() {
+        return intervalSeconds > 0 || changesLimit > 0;
+    }
+
+    /**
+     * ask for a save if anything changed and no save is asked for yet
+     */
+    public synchronized void requestIfDirty() {
+        if (changes() > 0 && !requested) {
+            requested = true;
+            saver.request();
+        }
+    }
+
+    @Override
+    public synchronized void onPut(Long key, SpaceMarine marine) {
+        changed(key);
+    }
+
+    @Override
+    public synchronized void onRemove(Long key) {
+        changed(key);
+    }
+
+    @Override
+    public synchronized void onClear() {
+        dirty.clear();
+        cleared = true;
+        if (changesLimit > 0) {
+            requestIfDirty();
+        }
+    }
+
+    private void changed(Long key) {
+        dirty.add(key);
+        if (changesLimit > 0 && changes() >= changesLimit) {
+            requestIfDirty();
+        }
+    }
+
+    /**
+     * @return number of changed marines, clear counts as one
+     */
+    private int changes() {
+        return dirty.size() + (cleared ? 1 : 0);
+    }
+
+    /**
+     * snapshot with all changes is taken, must be called when collection can't change
+     */
+    public synchronized void taken() {
+        saving.addAll(dirty);
+        savingCleared |= cleared;
+        dirty = new HashSet<>();
+        cleared = false;
+        requested = false;
+    }
+
+    /**
+     * snapshot taken last got into save file
+     */
+    public synchronized void saved() {
+        saving = new HashSet<>();
+        savingCleared = false;
+    }
+
+    /**
+     * snapshot taken last couldn't be saved, its changes are still to save
+     */
+    public synchronized void failed() {
+        dirty.addAll(saving);
+        cleared |= savingCleared;
+        saved();
+    }
+
+    /**
+     * @param out where to print settings and number of changes not saved yet
+     */
+    public synchronized void printStatus(PrintStream out) {
+        StringBuilder line = new StringBuilder("autosave: ");
+        if (!enabled()) {
+            line.append("off");
+        }
+        if (intervalSeconds > 0) {
+            line.append("every ").append(intervalSeconds).append(" s");
+        }
+        if (changesLimit > 0) {
+            line.append(intervalSeconds > 0 ? " or " : "").append("after ").append(changesLimit).append(" changed marines");
+        }
+        out.println(line);
+        long unsaved = dirty.size() + saving.stream().filter(key -> !dirty.contains(key)).count() + (cleared || savingCleared ? 1 : 0);
+        out.println("changed marines not saved yet: " + unsaved);
+    }
+}
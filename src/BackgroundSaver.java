@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * thread writing save files so commands don't wait for them, one save at a time:
+ * saves asked for while another one is written are done once after it
+ */
+public class BackgroundSaver {
+
+    /**
+     * writing of one save file
+     */
+    public interface Task {
+        /**
+         * @param saver to report progress to with {@link #started} and {@link #written}
+         * @throws IOException if file can't be written
+         */
+        void save(BackgroundSaver saver) throws IOException;
+    }
+
+    private final Task task;
+
+    private final ExecutorService thread = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "saver");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private boolean running = false;
+
+    private boolean pending = false;
+
+    private volatile long startedAt;
+
+    private volatile int total;
+
+    private volatile int written;
+
+    private volatile long lastSavedAt = 0;
+
+    private volatile int lastSaved;
+
+    private volatile long lastMillis;
+
+    private volatile long lastFailedAt = 0;
+
+    private volatile String lastFailure;
+
+    /**
+     * standart constructor
+     * @param task writing save file
+     */
+    public BackgroundSaver(Task task) {
+        this.task = task;
+    }
+
+    /**
+     * ask for a save, returns at once
+     */
+    public synchronized void request() {
+        if (running) {
+            pending = true;
+            return;
+        }
+        running = true;
+        begin();
+        thread.execute(this::saveWhileRequested);
+    }
+
+    /**
+     * wait until asked saves are done
+     * @throws InterruptedException
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while (running) {
+            wait();
+        }
+    }
+
+    private void saveWhileRequested() {
+        while (true) {
+            saveOnce();
+            synchronized (this) {
+                if (!pending) {
+                    running = false;
+                    notifyAll();
+                    return;
+                }
+                pending = false;
+                begin();
+            }
+        }
+    }
+
+    /**
+     * reset progress when save is started, so status never shows progress of the previous one
+     */
+    private void begin() {
+        startedAt = System.currentTimeMillis();
+        total = 0;
+        written = 0;
+    }
+
+    private void saveOnce() {
+        try {
+            task.save(this);
+            lastSavedAt = System.currentTimeMillis();
+            lastSaved = written;
+            lastMillis = lastSavedAt - startedAt;
+            lastFailure = null;
+        } catch (IOException | RuntimeException e) {
+            lastFailedAt = System.currentTimeMillis();
+            lastFailure = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+        }
+    }
+
+    /**
+     * @param marines number of marines in snapshot being saved
+     */
+    public void started(int marines) {
+        total = marines;
+    }
+
+    /**
+     * @param marines number of marines written so far
+     */
+    public void written(int marines) {
+        written = marines;
+    }
+
+    /**
+     * @param out where to print what is being saved now and how the last save went
+     */
+    public void printStatus(PrintStream out) {
+        SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        boolean queued;
+        boolean saving;
+        synchronized (this) {
+            saving = running;
+            queued = pending;
+        }
+        if (saving) {
+            int of = total;
+            out.printf("saving: %d of %d marines (%d%%) for %.1f s%s%n", written, of, of == 0 ? 0 : (long) written * 100 / of,
+                    (System.currentTimeMillis() - startedAt) / 1000.0, queued ? ", another save queued" : "");
+        }
+        else {
+            out.println("saving: idle");
+        }
+        if (lastSavedAt == 0) {
+            out.println("last save: none");
+        }
+        else {
+            out.println("last save: " + time.format(new Date(lastSavedAt)) + ", " + lastSaved + " marines in " + lastMillis + " ms");
+        }
+        if (lastFailure != null) {
+            out.println("last save failed at " + time.format(new Date(lastFailedAt)) + ": " + lastFailure);
+        }
+    }
+}
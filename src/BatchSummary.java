@@ -0,0 +1,143 @@
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * summary of script executed in batch mode: output of commands is not printed,
+ * results of listings are only counted, their errors and anything printed by other commands is kept as error
+ */
+public class BatchSummary {
+
+    private static final int MAX_LISTED_ERRORS = 20;
+
+    private final CommandTable<?> table;
+
+    private final Charset charset = Charset.defaultCharset();
+
+    private final ByteArrayOutputStream captured = new ByteArrayOutputStream();
+
+    private final PrintStream out = new PrintStream(new Sink(false), false, charset);
+
+    private final PrintStream err = new PrintStream(new Sink(true), false, charset);
+
+    private final Map<String, Integer> counts = new TreeMap<>();
+
+    private final List<String> errors = new ArrayList<>();
+
+    private final long start = System.nanoTime();
+
+    private boolean counting = false;
+
+    private String line;
+
+    private int commands = 0;
+
+    private int errorCount = 0;
+
+    private long resultLines = 0;
+
+    /**
+     * standart constructor
+     * @param table telling which commands print results
+     */
+    public BatchSummary(CommandTable<?> table) {
+        this.table = table;
+    }
+
+    /**
+     * @return stream the commands of script should print to
+     */
+    public PrintStream out() {
+        return out;
+    }
+
+    /**
+     * @return stream the commands of script should print errors to, what is printed there is always an error
+     */
+    public PrintStream err() {
+        return err;
+    }
+
+    /**
+     * @param line of script with command that is about to run
+     */
+    public void startCommand(String line) {
+        this.line = line.trim();
+        String command = this.line.split(" ", 2)[0];
+        counting = table.printsResults(command);
+        captured.reset();
+        commands++;
+        counts.merge(command, 1, Integer::sum);
+    }
+
+    /**
+     * take what the command printed as its error
+     */
+    public void finishCommand() {
+        out.flush();
+        err.flush();
+        if (captured.size() > 0) {
+            errorCount++;
+            if (errors.size() < MAX_LISTED_ERRORS) {
+                errors.add("command " + commands + " (" + line + "): " + captured.toString(charset).trim().replace('\n', ' '));
+            }
+            captured.reset();
+        }
+    }
+
+    /**
+     * @param to where to print the summary
+     */
+    public void print(PrintStream to) {
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        to.printf("executed %d commands in %d ms (%.0f commands/s), %d errors, %d lines of results%n",
+                commands, (long) (seconds * 1000), commands / seconds, errorCount, resultLines);
+        counts.forEach((command, count) -> to.println("  " + (command.isEmpty() ? "(empty line)" : command) + ": " + count));
+        errors.forEach(e -> to.println("  " + e));
+        if (errorCount > errors.size()) {
+            to.println("  ... and " + (errorCount - errors.size()) + " more errors");
+        }
+    }
+
+    /**
+     * stream counting lines of results and keeping everything else
+     */
+    private class Sink extends OutputStream {
+        private final boolean errors;
+
+        /**
+         * @param errors true if everything written is kept as error, whatever command prints it
+         */
+        private Sink(boolean errors) {
+            this.errors = errors;
+        }
+
+        @Override
+        public void write(int b) {
+            if (errors || !counting) {
+                captured.write(b);
+            }
+            else if (b == '\n') {
+                resultLines++;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (errors || !counting) {
+                captured.write(b, off, len);
+                return;
+            }
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n') {
+                    resultLines++;
+                }
+            }
+        }
+    }
+}
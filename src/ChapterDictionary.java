@@ -0,0 +1,104 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * dictionary of chapters, equal chapters and world names are shared by all marines instead of being copied.
+ * Chapters are counted by marines holding them and forgotten with the last one, so the dictionary only keeps
+ * chapters of marines that are still there
+ */
+public class ChapterDictionary {
+
+    /**
+     * shared value and number of its holders
+     */
+    private static class Shared<T> {
+        private final T value;
+        private int references = 0;
+
+        private Shared(T value) {
+            this.value = value;
+        }
+    }
+
+    private final Map<List<String>, Shared<Chapter>> chapters = new HashMap<>();
+
+    private final Map<String, Shared<String>> strings = new HashMap<>();
+
+    /**
+     * @param chapter to look up
+     * @return shared chapter equal to given or the given one if there is none yet, it becomes shared when retained
+     */
+    public Chapter intern(Chapter chapter) {
+        Shared<Chapter> shared = chapters.get(key(chapter));
+        return shared == null ? chapter : shared.value;
+    }
+
+    /**
+     * count chapter as held by one more marine, the first one makes it shared
+     * @param chapter of marine
+     */
+    public void retain(Chapter chapter) {
+        chapters.computeIfAbsent(key(chapter), k -> {
+            chapter.setName(retainString(chapter.getName()));
+            chapter.setWorld(retainString(chapter.getWorld()));
+            return new Shared<>(chapter);
+        }).references++;
+    }
+
+    /**
+     * count chapter as held by one marine less, the last one makes it forgotten
+     * @param chapter of marine
+     */
+    public void release(Chapter chapter) {
+        List<String> key = key(chapter);
+        Shared<Chapter> shared = chapters.get(key);
+        if (shared != null && --shared.references == 0) {
+            chapters.remove(key);
+            releaseString(shared.value.getName());
+            releaseString(shared.value.getWorld());
+        }
+    }
+
+    public void clear() {
+        chapters.clear();
+        strings.clear();
+    }
+
+    private static List<String> key(Chapter chapter) {
+        return Arrays.asList(chapter.getName(), chapter.getWorld());
+    }
+
+    /**
+     * chapter names and worlds share one string pool, chapters are often named after their world
+     * @param s string or null
+     * @return shared equal string
+     */
+    private String retainString(String s) {
+        if (s == null) {
+            return null;
+        }
+        Shared<String> shared = strings.computeIfAbsent(s, Shared::new);
+        shared.references++;
+        return shared.value;
+    }
+
+    private void releaseString(String s) {
+        if (s == null) {
+            return;
+        }
+        Shared<String> shared = strings.get(s);
+        if (shared != null && --shared.references == 0) {
+            strings.remove(s);
+        }
+    }
+
+    public int distinctChapters() {
+        return chapters.size();
+    }
+
+    public int distinctStrings() {
+        return strings.size();
+    }
+}
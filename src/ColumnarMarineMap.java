@@ -0,0 +1,334 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * map of marines keeping every field in its own primitive array, one row per marine,
+ * marines given out are views materialized from the row on every call.
+ * Filters can be checked on columns of a row with {@link #forEachRowMatching}, then only matching rows are materialized
+ */
+public class ColumnarMarineMap extends AbstractMap<Long, SpaceMarine> {
+
+    private static final AstartesCategory[] CATEGORIES = AstartesCategory.values();
+
+    private static final Weapon[] WEAPONS = Weapon.values();
+
+    private static final MeleeWeapon[] MELEE_WEAPONS = MeleeWeapon.values();
+
+    private final LongIntMap rows;
+
+    private int size = 0;
+
+    private long[] keys;
+
+    private long[] ids;
+
+    private String[] names;
+
+    private double[] xs;
+
+    private double[] ys;
+
+    private long[] dates;
+
+    private float[] health;
+
+    private byte[] categories;
+
+    private byte[] weaponTypes;
+
+    private byte[] meleeWeapons;
+
+    private Chapter[] chapters;
+
+    /**
+     * standart constructor
+     */
+    public ColumnarMarineMap() {
+        rows = new LongIntMap(16);
+        keys = new long[16];
+        ids = new long[16];
+        names = new String[16];
+        xs = new double[16];
+        ys = new double[16];
+        dates = new long[16];
+        health = new float[16];
+        categories = new byte[16];
+        weaponTypes = new byte[16];
+        meleeWeapons = new byte[16];
+        chapters = new Chapter[16];
+    }
+
+    /**
+     * @param other map to copy, only the columns are copied and not marines
+     */
+    private ColumnarMarineMap(ColumnarMarineMap other) {
+        rows = new LongIntMap(other.rows);
+        size = other.size;
+        int capacity = Math.max(size, 16);
+        keys = Arrays.copyOf(other.keys, capacity);
+        ids = Arrays.copyOf(other.ids, capacity);
+        names = Arrays.copyOf(other.names, capacity);
+        xs = Arrays.copyOf(other.xs, capacity);
+        ys = Arrays.copyOf(other.ys, capacity);
+        dates = Arrays.copyOf(other.dates, capacity);
+        health = Arrays.copyOf(other.health, capacity);
+        categories = Arrays.copyOf(other.categories, capacity);
+        weaponTypes = Arrays.copyOf(other.weaponTypes, capacity);
+        meleeWeapons = Arrays.copyOf(other.meleeWeapons, capacity);
+        chapters = Arrays.copyOf(other.chapters, capacity);
+    }
+
+    /**
+     * @return copy of all columns as they are now, later changes of this map don't touch it
+     */
+    public ColumnarMarineMap snapshot() {
+        return new ColumnarMarineMap(this);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Long && rows.get((Long) key) != LongIntMap.MISSING;
+    }
+
+    @Override
+    public SpaceMarine get(Object key) {
+        if (!(key instanceof Long)) {
+            return null;
+        }
+        int row = rows.get((Long) key);
+        return row == LongIntMap.MISSING ? null : materialize(row);
+    }
+
+    @Override
+    public SpaceMarine put(Long key, SpaceMarine marine) {
+        int row = rows.get(key);
+        SpaceMarine old = null;
+        if (row == LongIntMap.MISSING) {
+            if (size == keys.length) {
+                grow();
+            }
+            row = size++;
+            rows.put(key, row);
+        }
+        else {
+            old = materialize(row);
+        }
+        keys[row] = key;
+        ids[row] = marine.getId();
+        names[row] = marine.getName();
+        xs[row] = marine.getCoordinates().getX();
+        ys[row] = marine.getCoordinates().getY();
+        dates[row] = marine.getCreationTime();
+        health[row] = marine.getHealth();
+        categories[row] = (byte) (marine.getCategory() == null ? -1 : marine.getCategory().ordinal());
+        weaponTypes[row] = (byte) marine.getWeaponType().ordinal();
+        meleeWeapons[row] = (byte) marine.getMeleeWeapon().ordinal();
+        chapters[row] = marine.getChapter();
+        return old;
+    }
+
+    @Override
+    public SpaceMarine remove(Object key) {
+        if (!(key instanceof Long)) {
+            return null;
+        }
+        int row = rows.get((Long) key);
+        if (row == LongIntMap.MISSING) {
+            return null;
+        }
+        SpaceMarine old = materialize(row);
+        removeRow(row);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        rows.clear();
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(chapters, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public Set<Entry<Long, SpaceMarine>> entrySet() {
+        return new AbstractSet<Entry<Long, SpaceMarine>>() {
+            @Override
+            public Iterator<Entry<Long, SpaceMarine>> iterator() {
+                return new RowIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * walk rows in order, checking them only by their columns
+     * @param matches check of row number, reads it with the column getters like {@link #health}
+     * @param action for marine of every matching row, materialized only for it
+     * @return number of checked rows
+     */
+    public int forEachRowMatching(IntPredicate matches, BiConsumer<Long, SpaceMarine> action) {
+        int checked = size;
+        for (int row = 0; row < checked; row++) {
+            if (matches.test(row)) {
+                action.accept(keys[row], materialize(row));
+            }
+        }
+        return checked;
+    }
+
+    public long key(int row) {
+        return keys[row];
+    }
+
+    public long id(int row) {
+        return ids[row];
+    }
+
+    public String name(int row) {
+        return names[row];
+    }
+
+    public double x(int row) {
+        return xs[row];
+    }
+
+    public double y(int row) {
+        return ys[row];
+    }
+
+    public long creationTime(int row) {
+        return dates[row];
+    }
+
+    public float health(int row) {
+        return health[row];
+    }
+
+    public AstartesCategory category(int row) {
+        return categories[row] == -1 ? null : CATEGORIES[categories[row]];
+    }
+
+    public Weapon weaponType(int row) {
+        return WEAPONS[weaponTypes[row]];
+    }
+
+    public MeleeWeapon meleeWeapon(int row) {
+        return MELEE_WEAPONS[meleeWeapons[row]];
+    }
+
+    public Chapter chapter(int row) {
+        return chapters[row];
+    }
+
+    /**
+     * move the last row into the removed one so rows stay packed
+     * @param row to remove
+     */
+    private void removeRow(int row) {
+        rows.remove(keys[row]);
+        int last = --size;
+        if (row != last) {
+            keys[row] = keys[last];
+            ids[row] = ids[last];
+            names[row] = names[last];
+            xs[row] = xs[last];
+            ys[row] = ys[last];
+            dates[row] = dates[last];
+            health[row] = health[last];
+            categories[row] = categories[last];
+            weaponTypes[row] = weaponTypes[last];
+            meleeWeapons[row] = meleeWeapons[last];
+            chapters[row] = chapters[last];
+            rows.put(keys[row], row);
+        }
+        names[last] = null;
+        chapters[last] = null;
+    }
+
+    private SpaceMarine materialize(int row) {
+        return new SpaceMarine(ids[row], names[row], new Coordinates(xs[row], ys[row]), dates[row],
+                health[row], categories[row] == -1 ? null : CATEGORIES[categories[row]],
+                WEAPONS[weaponTypes[row]], MELEE_WEAPONS[meleeWeapons[row]], chapters[row]);
+    }
+
+    private void grow() {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        names = Arrays.copyOf(names, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        dates = Arrays.copyOf(dates, capacity);
+        health = Arrays.copyOf(health, capacity);
+        categories = Arrays.copyOf(categories, capacity);
+        weaponTypes = Arrays.copyOf(weaponTypes, capacity);
+        meleeWeapons = Arrays.copyOf(meleeWeapons, capacity);
+        chapters = Arrays.copyOf(chapters, capacity);
+    }
+
+    /**
+     * iterator over rows, marine of entry is materialized only when asked for
+     */
+    private class RowIterator implements Iterator<Entry<Long, SpaceMarine>> {
+        private int next = 0;
+
+        private int current = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Entry<Long, SpaceMarine> next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            current = next++;
+            int row = current;
+            long key = keys[row];
+            return new Map.Entry<Long, SpaceMarine>() {
+                @Override
+                public Long getKey() {
+                    return key;
+                }
+
+                @Override
+                public SpaceMarine getValue() {
+                    return materialize(row);
+                }
+
+                @Override
+                public SpaceMarine setValue(SpaceMarine value) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (current == -1) {
+                throw new IllegalStateException();
+            }
+            removeRow(current);
+            next = current;
+            current = -1;
+        }
+    }
+}
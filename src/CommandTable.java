@@ -0,0 +1,167 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * table of commands by name, every command knows its same-line arguments so their number is checked before it runs
+ * @param <C> state of the session commands run in
+ */
+public class CommandTable<C> {
+
+    /**
+     * action of command
+     * @param <C> state of the session
+     */
+    public interface Handler<C> {
+        /**
+         * @param session command runs in
+         * @param args words of the line, command name first
+         */
+        void run(C session, String[] args);
+    }
+
+    /**
+     * registered command with what help says about it
+     */
+    private static class Entry<C> {
+        private final String name;
+        private final String[] arguments;
+        private final int required;
+        private final String helpLine;
+        private final boolean printsResults;
+        private final Handler<C> handler;
+
+        private Entry(String name, String[] arguments, int required, String helpLine, boolean printsResults, Handler<C> handler) {
+            this.name = name;
+            this.arguments = arguments;
+            this.required = required;
+            this.helpLine = helpLine;
+            this.printsResults = printsResults;
+            this.handler = handler;
+        }
+    }
+
+    private final Map<String, Entry<C>> commands = new HashMap<>();
+
+    private final List<Entry<C>> ordered = new ArrayList<>();
+
+    /**
+     * add command that prints only messages, like errors or prompts
+     * @see #register(String, String, String, String, boolean, Handler)
+     */
+    public void register(String name, String arguments, String input, String description, Handler<C> handler) {
+        register(name, arguments, input, description, false, handler);
+    }
+
+    /**
+     * add command to table
+     * @param name of command
+     * @param arguments same-line arguments as in help, optional ones in brackets like "key [compact]", empty if none
+     * @param input what is read on further lines as in help like "{marine}", empty if nothing
+     * @param description for help
+     * @param printsResults true if what command prints is its result like with listings, false if it's messages
+     * @param handler action of command, only called with the right number of arguments
+     * @throws IllegalArgumentException if the name is taken
+     */
+    public void register(String name, String arguments, String input, String description, boolean printsResults, Handler<C> handler) {
+        if (commands.containsKey(name)) {
+            throw new IllegalArgumentException("command " + name + " is already registered");
+        }
+        String[] names = tokens(arguments);
+        int required = 0;
+        while (required < names.length && !names[required].startsWith("[")) {
+            required++;
+        }
+        StringBuilder helpLine = new StringBuilder(name);
+        if (!arguments.isEmpty()) {
+            helpLine.append(' ').append(arguments);
+        }
+        if (!input.isEmpty()) {
+            helpLine.append(' ').append(input);
+        }
+        helpLine.append(' ').append(description);
+        Entry<C> entry = new Entry<>(name, names, required, helpLine.toString(), printsResults, handler);
+        commands.put(name, entry);
+        ordered.add(entry);
+    }
+
+    /**
+     * run command of the line
+     * @param session to run command in
+     * @param args words of the line as given by {@link #tokens}
+     * @param out where to print wrong number of arguments
+     * @return name of command that ran or got wrong arguments, null if there is no such command
+     */
+    public String dispatch(C session, String[] args, PrintStream out) {
+        Entry<C> entry = args.length == 0 ? null : commands.get(args[0]);
+        if (entry == null) {
+            return null;
+        }
+        int given = args.length - 1;
+        if (given < entry.required) {
+            out.println(entry.arguments[given] + " required");
+        }
+        else if (given > entry.arguments.length) {
+            if (entry.arguments.length == 0) {
+                out.println(entry.name + " doesn't take any same-line arguments");
+            }
+            else if (entry.required == entry.arguments.length) {
+                out.println(entry.name + " only takes " + entry.required + " same-line argument" + (entry.required == 1 ? "" : "s"));
+            }
+            else {
+                out.println(entry.name + " only takes same-line arguments " + String.join(" ", entry.arguments));
+            }
+        }
+        else {
+            entry.handler.run(session, args);
+        }
+        return entry.name;
+    }
+
+    /**
+     * @param name of command
+     * @return true if command is registered as printing results
+     */
+    public boolean printsResults(String name) {
+        Entry<C> entry = commands.get(name);
+        return entry != null && entry.printsResults;
+    }
+
+    /**
+     * @param out where to print help lines of all commands in the order they were registered
+     */
+    public void help(PrintStream out) {
+        ordered.forEach(e -> out.println(e.helpLine));
+    }
+
+    /**
+     * split line into words separated by spaces, without regular expressions
+     * @param line to split
+     * @return non-empty words, no words for blank line
+     */
+    public static String[] tokens(String line) {
+        int end = line.length();
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            if (line.charAt(i) != ' ' && (i == 0 || line.charAt(i - 1) == ' ')) {
+                count++;
+            }
+        }
+        String[] tokens = new String[count];
+        int n = 0;
+        int i = 0;
+        while (n < count) {
+            while (line.charAt(i) == ' ') {
+                i++;
+            }
+            int start = i;
+            while (i < end && line.charAt(i) != ' ') {
+                i++;
+            }
+            tokens[n++] = line.substring(start, i);
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,175 @@
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneRules;
+
+/**
+ * codec of creation dates between epoch milliseconds and dd-MM-yy text, safe to use from several threads,
+ * dates are days of the default time zone like with SimpleDateFormat
+ */
+public class DateCodec {
+
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    private static final int CACHE_SIZE = 1024;
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    private static final ZoneRules RULES = ZONE.getRules();
+
+    /**
+     * two-digit years fall into a hundred years starting 80 years ago, the same as with SimpleDateFormat:
+     * the year of this moment is read as the later century for days before this moment
+     */
+    private static final long CENTURY_START_MILLIS = ZonedDateTime.now(ZONE).minusYears(80).toInstant().toEpochMilli();
+
+    private static final int CENTURY_START = ZonedDateTime.now(ZONE).minusYears(80).getYear();
+
+    /**
+     * day and its text or start of day in millis, immutable so threads can share cache slots without locks
+     */
+    private static class Cached {
+        private final long day;
+        private final long millis;
+        private final String text;
+
+        private Cached(long day, long millis, String text) {
+            this.day = day;
+            this.millis = millis;
+            this.text = text;
+        }
+    }
+
+    private static final Cached[] parsed = new Cached[CACHE_SIZE];
+
+    private static final Cached[] formatted = new Cached[CACHE_SIZE];
+
+    /**
+     * parse date, out of range day or month roll over into the next ones like in lenient SimpleDateFormat
+     * @param text as day-month-year, fixed dd-MM-yy layout is parsed without any allocation
+     * @return start of the day in epoch millis
+     * @throws IllegalArgumentException if text is not a date
+     */
+    public static long parse(String text) {
+        int day;
+        int month;
+        int year;
+        boolean twoDigitYear;
+        if (text.length() == 8 && text.charAt(2) == '-' && text.charAt(5) == '-') {
+            day = twoDigits(text, 0);
+            month = twoDigits(text, 3);
+            year = twoDigits(text, 6);
+            if (day < 0 || month < 0 || year < 0) {
+                throw new IllegalArgumentException("not a date: " + text);
+            }
+            twoDigitYear = true;
+        }
+        else {
+            String[] parts = text.split("-", -1);
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("not a date: " + text);
+            }
+            day = digits(parts[0], text);
+            month = digits(parts[1], text);
+            year = digits(parts[2], text);
+            twoDigitYear = parts[2].length() == 2;
+        }
+        try {
+            if (!twoDigitYear) {
+                return startOfDay(epochDay(year, month, day));
+            }
+            long millis = startOfDay(epochDay(fullYear(year), month, day));
+            if (year == CENTURY_START % 100 && millis < CENTURY_START_MILLIS) {
+                millis = startOfDay(epochDay(fullYear(year) + 100, month, day));
+            }
+            return millis;
+        } catch (DateTimeException | ArithmeticException e) {
+            // rolled over past the years LocalDate and epoch millis can hold
+            throw new IllegalArgumentException("not a date: " + text);
+        }
+    }
+
+    /**
+     * @return number of day, out of range day or month roll over
+     */
+    private static long epochDay(int year, int month, int day) {
+        long epochDay = LocalDate.of(year, 1, 1).toEpochDay();
+        if (month != 1 || day != 1) {
+            epochDay = LocalDate.ofEpochDay(epochDay).plusMonths(month - 1).plusDays(day - 1).toEpochDay();
+        }
+        return epochDay;
+    }
+
+    /**
+     * @param millis epoch millis
+     * @return day of the moment as dd-MM-yy
+     */
+    public static String format(long millis) {
+        long epochDay = day(millis);
+        int slot = (int) Math.floorMod(epochDay, (long) CACHE_SIZE);
+        Cached cached = formatted[slot];
+        if (cached == null || cached.day != epochDay) {
+            LocalDate date = LocalDate.ofEpochDay(epochDay);
+            char[] text = {'0', '0', '-', '0', '0', '-', '0', '0'};
+            putTwoDigits(text, 0, date.getDayOfMonth());
+            putTwoDigits(text, 3, date.getMonthValue());
+            putTwoDigits(text, 6, Math.floorMod(date.getYear(), 100));
+            cached = new Cached(epochDay, 0, new String(text));
+            formatted[slot] = cached;
+        }
+        return cached.text;
+    }
+
+    /**
+     * @param millis epoch millis
+     * @return number of day of the moment in default time zone, days since 01-01-1970
+     */
+    public static long day(long millis) {
+        return Math.floorDiv(millis + RULES.getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds() * 1000L, MILLIS_PER_DAY);
+    }
+
+    /**
+     * @param epochDay number of day
+     * @return start of the day in default time zone as epoch millis
+     */
+    public static long startOfDay(long epochDay) {
+        int slot = (int) Math.floorMod(epochDay, (long) CACHE_SIZE);
+        Cached cached = parsed[slot];
+        if (cached == null || cached.day != epochDay) {
+            cached = new Cached(epochDay, LocalDate.ofEpochDay(epochDay).atStartOfDay(ZONE).toInstant().toEpochMilli(), null);
+            parsed[slot] = cached;
+        }
+        return cached.millis;
+    }
+
+    private static int fullYear(int twoDigitYear) {
+        int year = CENTURY_START - Math.floorMod(CENTURY_START, 100) + twoDigitYear;
+        return year < CENTURY_START ? year + 100 : year;
+    }
+
+    /**
+     * @return number of two digits at position or -1 if they aren't digits
+     */
+    private static int twoDigits(String text, int at) {
+        int high = text.charAt(at) - '0';
+        int low = text.charAt(at + 1) - '0';
+        if (high < 0 || high > 9 || low < 0 || low > 9) {
+            return -1;
+        }
+        return high * 10 + low;
+    }
+
+    private static int digits(String part, String text) {
+        if (part.isEmpty() || part.length() > 9 || !part.chars().allMatch(Character::isDigit)) {
+            throw new IllegalArgumentException("not a date: " + text);
+        }
+        return Integer.parseInt(part);
+    }
+
+    private static void putTwoDigits(char[] text, int at, int value) {
+        text[at] = (char) ('0' + value / 10);
+        text[at + 1] = (char) ('0' + value % 10);
+    }
+}
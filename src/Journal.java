@@ -0,0 +1,248 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * journal of changes made to collection since the last snapshot, every change is one line:
+ * "P " and marine in save file format, "R " and key or "C" for clear.
+ * While a snapshot is being saved its records are kept in a rotated file next to the journal,
+ * replaying them once more on top of the saved snapshot changes nothing, so a crash at any point loses nothing.
+ * Flushed records are forced to disk; once a record can't be written the journal stays failed
+ * until a snapshot taken after the failure is saved, since records after a lost one can't be replayed
+ */
+public class Journal implements MarineCollection.MutationListener {
+
+    private final Path path;
+
+    private final Path rotated;
+
+    private final int limit;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Charset charset = Charset.defaultCharset();
+
+    private FileChannel channel;
+
+    private Writer writer;
+
+    private int records = 0;
+
+    /**
+     * true if records were written after the last force to disk
+     */
+    private boolean unsynced = false;
+
+    private IOException failure;
+
+    /**
+     * true if the snapshot being saved was taken after the failure, so saving it makes the journal whole again
+     */
+    private boolean failureInSnapshot = false;
+
+    /**
+     * standart constructor
+     * @param path of journal file
+     * @param limit number of records after which the journal should be compacted into snapshot
+     */
+    public Journal(String path, int limit) {
+        this.path = Paths.get(path);
+        rotated = Paths.get(path + ".1");
+        this.limit = limit;
+    }
+
+    /**
+     * apply rotated journal left by unfinished save and then journal on top of loaded snapshot,
+     * unfinished or broken tail left by a crash is cut off
+     * @param marines collection with loaded snapshot
+     * @return number of applied records
+     * @throws CustomFileException if journal can't be read
+     */
+    public int replay(MarineCollection marines) throws CustomFileException {
+        replay(marines, rotated);
+        replay(marines, path);
+        return records;
+    }
+
+    private void replay(MarineCollection marines, Path path) throws CustomFileException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(path);
+        } catch (IOException e) {
+            throw CustomFileException.readProblem();
+        }
+        int lineStart = 0;
+        for (int p = 0; p < bytes.length; p++) {
+            if (bytes[p] != '\n') {
+                continue;
+            }
+            if (!apply(marines, new String(bytes, lineStart, p - lineStart, charset))) {
+                break;
+            }
+            records++;
+            lineStart = p + 1;
+        }
+        if (lineStart < bytes.length) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(lineStart);
+            } catch (IOException e) {
+                throw CustomFileException.readProblem();
+            }
+        }
+    }
+
+    /**
+     * @param marines collection to change
+     * @param line of journal
+     * @return false if line is broken
+     */
+    private static boolean apply(MarineCollection marines, String line) {
+        try {
+            if (line.equals("C")) {
+                marines.clear();
+            }
+            else if (line.startsWith("R ")) {
+                marines.remove(Long.parseLong(line.substring(2)));
+            }
+            else if (line.startsWith("P ")) {
+                Map.Entry<Long, SpaceMarine> entry = MarineCsv.parse(line.substring(2));
+                marines.put(entry.getKey(), entry.getValue());
+            }
+            else {
+                return false;
+            }
+            return true;
+        } catch (CustomFileException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void onPut(Long key, SpaceMarine marine) {
+        append("P " + MarineCsv.format(key, marine));
+    }
+
+    @Override
+    public void onRemove(Long key) {
+        append("R " + key);
+    }
+
+    @Override
+    public void onClear() {
+        append("C");
+    }
+
+    private synchronized void append(String line) {
+        if (failure != null) {
+            return;
+        }
+        try {
+            if (writer == null) {
+                channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                writer = Channels.newWriter(channel, charset.newEncoder(), BUFFER_SIZE);
+            }
+            writer.write(line);
+            writer.write('\n');
+            records++;
+            unsynced = true;
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * push appended records to file and force them to disk
+     * @throws IOException if any record since the last flush couldn't be written or the journal failed earlier
+     */
+    public synchronized void flush() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (writer != null && unsynced) {
+            try {
+                writer.flush();
+                channel.force(false);
+                unsynced = false;
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return true if a record couldn't be written and no snapshot taken after that is saved yet,
+     * changes made meanwhile would be lost from the journal
+     */
+    public synchronized boolean failed() {
+        return failure != null;
+    }
+
+    /**
+     * @return true if journal grew past its limit and a fresh snapshot should be written
+     */
+    public boolean needsCompaction() {
+        return records >= limit;
+    }
+
+    /**
+     * start an empty journal when a snapshot is taken, its records are moved to the rotated file
+     * until the snapshot is saved, added to the records already there if the last save failed
+     * @throws IOException
+     */
+    public synchronized void rotate() throws IOException {
+        if (writer != null) {
+            Writer closed = writer;
+            writer = null;
+            channel = null;
+            try {
+                closed.close();
+            } catch (IOException e) {
+                // records of failed journal are lost anyway, the snapshot has their changes
+                if (failure == null) {
+                    failure = e;
+                    throw e;
+                }
+            }
+        }
+        if (Files.exists(path)) {
+            if (Files.exists(rotated)) {
+                Files.write(rotated, Files.readAllBytes(path), StandardOpenOption.APPEND);
+                Files.delete(path);
+            }
+            else {
+                Files.move(path, rotated, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        records = 0;
+        unsynced = false;
+        failureInSnapshot = failure != null;
+    }
+
+    /**
+     * forget records of the snapshot after it was saved, if it was taken after a failure the journal accepts records again
+     * @throws IOException
+     */
+    public synchronized void dropRotated() throws IOException {
+        Files.deleteIfExists(rotated);
+        if (failureInSnapshot) {
+            failure = null;
+            failureInSnapshot = false;
+        }
+    }
+
+    public synchronized int size() {
+        return records;
+    }
+}
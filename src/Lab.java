@@ -1,29 +1,113 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongConsumer;
 import java.util.function.Predicate;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.stream.LongStream;
 
 /**
  * class of interactive work with laba
  */
 public class Lab {
 
-    private Map<Long, SpaceMarine> marines = new HashMap<>();
+    /**
+     * store over mapped save file when LOAD_MODE is lazy, otherwise null
+     */
+    private final LazyMarineMap lazyStore = "lazy".equals(System.getenv("LOAD_MODE")) ? new LazyMarineMap() : null;
+
+    private final MarineCollection marines = new MarineCollection(lazyStore != null ? lazyStore : createStore(System.getenv("STORE")));
+
+    private final String saveFilePath;
+
+    private final AtomicLong maxid = new AtomicLong();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
-    private final String saveFilePath = System.getenv("FILE");
+    private final Charset charset = Charset.defaultCharset();
 
-    private long maxid = 0;
+    private final BackgroundSaver saver = new BackgroundSaver(this::saveSnapshot);
 
-    private int scriptDepth = 0;
+    private final Autosave autosave = new Autosave(saver, intEnv("AUTOSAVE_INTERVAL", 0), intEnv("AUTOSAVE_CHANGES", 0));
 
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MM-yy");
+    private static final int MAX_SCRIPT_DEPTH = 64;
+
+    private static final String JOURNAL_FAILED = "changes are refused until save writes a full snapshot";
+
+    /**
+     * most marines a listing reads under one hold of the read lock
+     */
+    private static final int LIST_BATCH = 1024;
+
+    /**
+     * number of written marines after which progress of save is updated
+     */
+    private static final int PROGRESS_STEP = 4096;
+
+    private SaveFileLoader loader;
+
+    private boolean mapped = false;
+
+    private final boolean parallelLoad = "parallel".equals(System.getenv("LOAD_MODE"));
+
+    private final boolean binarySave = "binary".equals(System.getenv("SAVE_FORMAT"));
+
+    private final boolean journalEnabled = System.getenv("JOURNAL") != null;
+
+    private Journal journal;
+
+    private int replayed = 0;
+
+    private final Stats stats = new Stats();
+
+    private final CommandTable<Session> commands = createCommands();
+
+    /**
+     * nanos the thread spent waiting for lines of commands' arguments, not counted into their latency
+     */
+    private static final ThreadLocal<long[]> inputWait = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * standart constructor, save file is taken from FILE
+     */
+    public Lab() {
+        this(System.getenv("FILE"));
+    }
+
+    /**
+     * @param saveFilePath path of save file
+     */
+    public Lab(String saveFilePath) {
+        this.saveFilePath = saveFilePath;
+    }
+
+    /**
+     * @param type of store, "tree" for key-ordered, "columnar" for primitive columns, anything else for hash map
+     * @return empty map to keep marines in
+     */
+    private static Map<Long, SpaceMarine> createStore(String type) {
+        if ("tree".equals(type)) {
+            return new TreeMap<>();
+        }
+        if ("columnar".equals(type)) {
+            return new ColumnarMarineMap();
+        }
+        return new HashMap<>();
+    }
 
     /**
      * method of reading file
@@ -34,427 +118,867 @@ public class Lab {
         if (saveFilePath == null) {
             throw CustomFileException.envVarNotSet();
         }
-        InputStream stream;
-        try {
-            stream = new FileInputStream(saveFilePath);
-        } catch (FileNotFoundException e) {
-            throw CustomFileException.notFound();
-        }
-        InputStreamReader reader = new InputStreamReader(stream);
-        String line;
-        int i = 1;
         Map<Integer, String> errors = new HashMap<>();
-        while (true) {
-            try {
-                if ((line = readLine(reader)).isEmpty()) break;
-            } catch (IOException e) {
-                throw CustomFileException.readProblem();
-            }
-            String[] ogFields = line.split(" *, *");
-            if (Arrays.stream(ogFields).anyMatch(s -> !(s.startsWith("\"") == s.endsWith("\"")))) {
-                errors.put(i++, "bad quoting");
-                continue;
-            }
-            String[] fields = Arrays.stream(ogFields).map(s -> {
-                if (s.equals("null")) {
-                    return null;
+        long start = System.nanoTime();
+        loader = new SaveFileLoader(saveFilePath);
+        if (lazyStore != null && !loader.isBinary()) {
+            lazyStore.open(saveFilePath, errors::put);
+            marines.reindexLater();
+            mapped = true;
+        }
+        else if (loader.isBinary()) {
+            loader.loadBinary(e -> marines.put(e.getKey(), e.getValue()), errors::put);
+        }
+        else if (parallelLoad) {
+            loader.loadParallel(MarineCsv::parse, e -> marines.put(e.getKey(), e.getValue()), errors::put);
+        }
+        else {
+            loader.load((i, line) -> {
+                try {
+                    Map.Entry<Long, SpaceMarine> entry = MarineCsv.parse(line);
+                    marines.put(entry.getKey(), entry.getValue());
+                } catch (CustomFileException e) {
+                    errors.put(i, e.getMessage());
                 }
-                return s.replaceAll("^\"|\"$", "");
-            }).toArray(String[]::new);
+            });
+        }
+        marines.addListener(autosave);
+        if (journalEnabled) {
+            journal = new Journal(saveFilePath + ".journal", intEnv("JOURNAL_LIMIT", 10000));
+            replayed = journal.replay(marines);
+            marines.addListener(journal);
+        }
+        if (mapped) {
+            maxid.set(lazyStore.maxId());
+        }
+        else {
+            maxid.set(marines.values().stream().map(SpaceMarine::getId).max(Long::compare).orElse(0L));
+        }
+        stats.load(System.nanoTime() - start, marines.size());
+        autosave.start();
+        return errors;
+    }
 
-            if (fields.length != 12) {
-                errors.put(i++, "only " + fields.length + "fields");
-                continue;
+    /**
+     * @param name of environment variable, like JOURNAL_LIMIT for number of journal records after which it's compacted,
+     * AUTOSAVE_INTERVAL for seconds between autosaves or AUTOSAVE_CHANGES for number of changed marines saved at once
+     * @param orElse value if variable isn't set or isn't a number
+     * @return value of variable
+     */
+    private static int intEnv(String name, int orElse) {
+        try {
+            return Integer.parseInt(System.getenv(name));
+        } catch (NumberFormatException e) {
+            return orElse;
+        }
+    }
+
+    /**
+     * throughput of the last readFile
+     * @return report line or empty string if nothing was loaded
+     */
+    public String loadReport() {
+        if (loader == null) {
+            return "";
+        }
+        String report = mapped ? lazyStore.report() : loader.report();
+        return journal == null ? report : report + ", replayed " + replayed + " journal records";
+    }
+
+    /**
+     * method of work with singlearg commands, number of arguments is already checked by command table
+     * @param out where to print
+     * @param arg the argument
+     * @param parse function parse
+     * @param isValid - predicate form math
+     * @param argName
+     * @param validityErrorMessage - error if you have them
+     * @param action
+     * @param <T>
+     */
+    private <T> void simpleSingleArg(PrintStream out, String arg, Function<String, T> parse, Predicate<T> isValid, String argName, String validityErrorMessage, Consumer<T> action) {
+        T t;
+        try {
+            t = parse.apply(arg);
+        } catch (Exception e) {
+            out.println("invalid " + argName);
+            return;
+        }
+        if (isValid.test(t)) {
+            action.accept(t);
+        }
+        else {
+            out.println(validityErrorMessage);
+        }
+    }
+
+    /**
+     * state of one command loop
+     */
+    private static class Session {
+        private final Scanner scanner;
+        private final PrintStream out;
+        /**
+         * where commands printing results print their errors, the same as out unless errors are counted apart from results
+         */
+        private final PrintStream err;
+        private final boolean quiet;
+        private final Deque<Path> scripts;
+        private final BatchSummary batch;
+        private boolean exit = false;
+
+        private Session(Scanner scanner, PrintStream out, boolean quiet, Deque<Path> scripts, BatchSummary batch) {
+            this.scanner = scanner;
+            this.out = out;
+            this.err = batch == null ? out : batch.err();
+            this.quiet = quiet;
+            this.scripts = scripts;
+            this.batch = batch;
+        }
+    }
+
+    /**
+     * @return table of all commands, in the order help lists them
+     */
+    private CommandTable<Session> createCommands() {
+        CommandTable<Session> table = new CommandTable<>();
+        table.register("help", "", "", "print help", true, (s, args) -> help(s.out));
+        table.register("info", "", "", "print info about current state of marines", true, (s, args) -> read(s.out, this::info));
+        table.register("show", "[compact] [limit] [after_key]", "", "print all marines, compact prints one marine per line, with limit prints a page in key order and where the next starts", true, (s, args) -> {
+            Page page = pageArgs(s.err, args, "after_key");
+            if (page == null) {
+                return;
             }
-            long key;
+            Long after;
             try {
-                key = Long.parseLong(fields[0]);
+                after = page.after == null ? null : Long.parseLong(page.after);
             } catch (NumberFormatException e) {
-                errors.put(i++, "invalid key");
-                continue;
+                s.err.println("invalid after_key");
+                return;
             }
-            long id;
-            try {
-                id = Long.parseLong(fields[1]);
-            } catch (NumberFormatException e) {
-                errors.put(i++, "invalid id");
-                continue;
+            MarinePrinter printer = new MarinePrinter(s.out, page.compact);
+            if (page.limit == 0) {
+                show(printer);
             }
-            String name = fields[2];
-            if (name.isEmpty()) {
-                errors.put(i++, "invalid name");
-                continue;
+            else {
+                showPage(printer, after, page.limit);
             }
-            double x;
-            double y;
-            try {
-                x = Double.parseDouble(fields[3]);
-            } catch (NumberFormatException e) {
-                errors.put(i++, "invalid x coordinate");
-                continue;
+        });
+        table.register("insert", "key", "{marine}", "add new marine with given key", (s, args) ->
+                simpleSingleArg(s.out, args[1],
+                        Long::parseLong,
+                        locked(k -> !marines.containsKey(k)),
+                        "key",
+                        "key already present",
+                        k -> {
+                            SpaceMarine marine = readMarine(s.out, s.scanner, s.quiet);
+                            write(s.out, out -> {
+                                if (marines.containsKey(k)) {
+                                    out.println("key already present");
+                                }
+                                else {
+                                    insert(k, marine);
+                                }
+                            });
+                        }));
+        table.register("update", "id", "{marine}", "update marine with given id", (s, args) ->
+                simpleSingleArg(s.out, args[1],
+                        Long::parseLong,
+                        locked(marines::containsId),
+                        "id",
+                        "id not found",
+                        id -> {
+                            SpaceMarine marine = readMarine(s.out, s.scanner, s.quiet);
+                            write(s.out, out -> {
+                                if (marines.containsId(id)) {
+                                    update(id, marine);
+                                }
+                                else {
+                                    out.println("id not found");
+                                }
+                            });
+                        }));
+        table.register("remove_key", "key", "", "delete marine with given key", (s, args) ->
+                simpleSingleArg(s.out, args[1],
+                        Long::parseLong,
+                        locked(marines::containsKey),
+                        "key",
+                        "key not found",
+                        k -> write(s.out, out -> removeKey(k))));
+        table.register("clear", "", "", "delete all marines", (s, args) -> write(s.out, out -> clear()));
+        table.register("save", "", "", "save marines to file in the background, with journal only force it to disk", (s, args) -> save(s.out));
+        table.register("save_status", "", "", "show progress of running save, when the last one was done and what's not saved yet", true, (s, args) -> {
+            saver.printStatus(s.out);
+            autosave.printStatus(s.out);
+            if (journal != null) {
+                s.out.println("journal: " + (journal.failed() ? "can't be written, " + JOURNAL_FAILED : journal.size() + " records on disk since the last snapshot"));
             }
-            try {
-                y = Double.parseDouble(fields[4]);
-            } catch (NumberFormatException e) {
-                errors.put(i++, "invalid y coordinate");
-                continue;
+        });
+        table.register("execute_script", "file_name [batch]", "", "execute script, in batch mode print only a summary", (s, args) -> {
+            if (args.length == 3 && !args[2].equals("batch")) {
+                s.out.println("execute_script only takes a file and optional 'batch'");
             }
-            Coordinates coordinates = new Coordinates(x, y);
-            Date creationDate;
-            try {
-                 creationDate = dateFormat.parse(fields[5]);
-            } catch (ParseException e) {
-                errors.put(i++, "invalid date");
-                continue;
+            else {
+                executeScript(args[1], args.length == 3, s.out, s.scripts, s.batch);
             }
-            float health;
+        });
+        table.register("exit", "", "", "end execution", (s, args) -> s.exit = true);
+        table.register("remove_lower", "", "{marine}", "delete all marines with health lower than the one given", (s, args) -> {
+            SpaceMarine marine = readMarine(s.out, s.scanner, s.quiet);
+            write(s.out, out -> removeLower(marine));
+        });
+        table.register("replace_if_lower", "key", "{marine}", "replace marine with key with given one if the new health is lower than the old", (s, args) ->
+                simpleSingleArg(s.out, args[1],
+                        Long::parseLong,
+                        locked(marines::containsKey),
+                        "key",
+                        "key not found",
+                        k -> {
+                            SpaceMarine marine = readMarine(s.out, s.scanner, s.quiet);
+                            write(s.out, out -> {
+                                if (marines.containsKey(k)) {
+                                    replaceIfLower(k, marine);
+                                }
+                                else {
+                                    out.println("key not found");
+                                }
+                            });
+                        }));
+        table.register("remove_lower_key", "key", "", "delete all marines with key lower than given", (s, args) ->
+                simpleSingleArg(s.out, args[1],
+                        Long::parseLong,
+                        k -> true,
+                        "key",
+                        "",
+                        k -> write(s.out, out -> removeLowerKey(k))));
+        table.register("group_counting_by_creation_date", "", "", "print number of marines with each creation date", true, (s, args) ->
+                groupCountingByCreationDate(new MarinePrinter(s.out, false)));
+        table.register("filter_greater_than_category", "[compact]", "{category}", "print marines with categories higher than the one given", true, (s, args) -> {
+            Boolean compact = compactArg(s.err, args);
+            if (compact != null) {
+                AstartesCategory category = readObject(s.err, s.scanner,
+                        AstartesCategory::valueOf,
+                        c -> true,
+                        "Enter category (one of [" +
+                                Arrays.stream(AstartesCategory.values()).map(AstartesCategory::toString)
+                                        .collect(Collectors.joining(", ")) + "]): ",
+                        "invalid category",
+                        false,
+                        s.quiet);
+                filterGreaterThanCategory(new MarinePrinter(s.out, compact), category);
+            }
+        });
+        table.register("query", "[compact|explain]", "{condition}", "print marines matching condition like health < 5 and weapon = BOLTGUN and chapter.world = Macragge, explain prints how they are found instead", true, (s, args) -> {
+            if (args.length == 2 && !args[1].equals("compact") && !args[1].equals("explain")) {
+                s.err.println("query only takes optional 'compact' or 'explain' same-line argument");
+                return;
+            }
+            String text = readObject(s.err, s.scanner,
+                    line -> line,
+                    line -> !line.trim().isEmpty(),
+                    "Enter condition: ",
+                    "condition can't be empty",
+                    false,
+                    s.quiet);
+            Query query;
             try {
-                health = Float.parseFloat(fields[6]);
-                if (health <= 0) {
-                    throw new NumberFormatException();
-                }
-            } catch (NumberFormatException e) {
-                errors.put(i++, "invalid health");
-                continue;
+                query = Query.parse(text);
+            } catch (IllegalArgumentException e) {
+                s.err.println("invalid condition: " + e.getMessage());
+                return;
+            }
+            if (args.length == 2 && args[1].equals("explain")) {
+                read(s.out, out -> explain(out, query));
+            }
+            else {
+                query(new MarinePrinter(s.out, args.length == 2), query);
+            }
+        });
+        table.register("within", "x1 y1 x2 y2 [compact]", "", "print marines with coordinates inside rectangle between two corners, edges included, in order of keys", true, (s, args) -> {
+            if (args.length == 6 && !args[5].equals("compact")) {
+                s.err.println("within only takes optional 'compact' argument after the corners");
+                return;
+            }
+            Double x1 = coordinateArg(s.err, args[1], "x1");
+            Double y1 = x1 == null ? null : coordinateArg(s.err, args[2], "y1");
+            Double x2 = y1 == null ? null : coordinateArg(s.err, args[3], "x2");
+            Double y2 = x2 == null ? null : coordinateArg(s.err, args[4], "y2");
+            if (y2 != null) {
+                within(new MarinePrinter(s.out, args.length == 6), x1, y1, x2, y2);
+            }
+        });
+        table.register("nearest", "k x y [compact]", "", "print k marines closest to point, closest first", true, (s, args) -> {
+            if (args.length == 5 && !args[4].equals("compact")) {
+                s.err.println("nearest only takes optional 'compact' argument after the point");
+                return;
+            }
+            int k = countArg(s.err, args[1]);
+            Double x = k <= 0 ? null : coordinateArg(s.err, args[2], "x");
+            Double y = x == null ? null : coordinateArg(s.err, args[3], "y");
+            if (y != null) {
+                nearest(new MarinePrinter(s.out, args.length == 5), k, x, y);
+            }
+        });
+        table.register("bottom_k", "k [compact]", "", "print k weakest marines in the order of print_ascending", true, (s, args) -> {
+            if (args.length == 3 && !args[2].equals("compact")) {
+                s.err.println("bottom_k only takes optional 'compact' argument after k");
+                return;
+            }
+            int k = countArg(s.err, args[1]);
+            if (k > 0) {
+                bottomK(new MarinePrinter(s.out, args.length == 3), k);
+            }
+        });
+        table.register("top_k", "k [compact]", "", "print k strongest marines, strongest first, in the reverse order of print_ascending", true, (s, args) -> {
+            if (args.length == 3 && !args[2].equals("compact")) {
+                s.err.println("top_k only takes optional 'compact' argument after k");
+                return;
+            }
+            int k = countArg(s.err, args[1]);
+            if (k > 0) {
+                topK(new MarinePrinter(s.out, args.length == 3), k);
+            }
+        });
+        table.register("print_ascending", "[compact] [limit] [after]", "", "print all marines sorted by health, with limit prints a page and where the next starts", true, (s, args) -> {
+            Page page = pageArgs(s.err, args, "after");
+            if (page == null) {
+                return;
             }
-            AstartesCategory category;
-            if (fields[7] == null) {
-                category = null;
-            } else {
+            Float afterHealth = null;
+            Long afterKey = null;
+            if (page.after != null) {
+                int slash = page.after.indexOf('/');
                 try {
-                    category = AstartesCategory.valueOf(fields[7]);
-                } catch (IllegalArgumentException e) {
-                    errors.put(i++, "invalid category");
-                    continue;
+                    afterHealth = Float.parseFloat(page.after.substring(0, slash));
+                    afterKey = Long.parseLong(page.after.substring(slash + 1));
+                } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    s.err.println("invalid after, should be health/key as printed after the previous page");
+                    return;
                 }
             }
-            Weapon weaponType;
-            try {
-                weaponType = Weapon.valueOf(fields[8]);
-            } catch (IllegalArgumentException e) {
-                errors.put(i++, "invalid weapon type");
-                continue;
+            MarinePrinter printer = new MarinePrinter(s.out, page.compact);
+            if (page.limit == 0) {
+                printAscending(printer);
             }
-            MeleeWeapon meleeWeapon;
-            try {
-                meleeWeapon = MeleeWeapon.valueOf(fields[9]);
-            } catch (IllegalArgumentException e) {
-                errors.put(i++, "invalid melee weapon type");
-                continue;
+            else {
+                printAscendingPage(printer, afterHealth, afterKey, page.limit);
+            }
+        });
+        table.register("stats", "", "", "print counts and latencies of commands, load and save times and size of marines over time", true, (s, args) -> stats.print(s.out));
+        return table;
+    }
+
+    /**
+     * method for interactive work
+     * @param scanner
+     * @param out where to print results
+     * @param quiet boolean for hiding console
+     */
+    public void interact(Scanner scanner, PrintStream out, boolean quiet) {
+        interact(scanner, out, quiet, new ArrayDeque<>(), null);
+    }
+
+    /**
+     * method for interactive work
+     * @param scanner
+     * @param out where to print results
+     * @param quiet boolean for hiding console
+     * @param scripts real paths of scripts this loop is nested in, the innermost last
+     * @param batch summary of batch script this loop belongs to or null if output is printed as usual
+     */
+    private void interact(Scanner scanner, PrintStream out, boolean quiet, Deque<Path> scripts, BatchSummary batch) {
+        Session session = new Session(scanner, out, quiet, scripts, batch);
+        if (!quiet) {
+            out.print("> ");
+            out.flush();
+        }
+        while (scanner.hasNextLine()) {
+            String line = scanner.nextLine();
+            if (batch != null) {
+                batch.startCommand(line);
             }
-            Chapter chapter;
-            if (fields[10] == null) {
-                chapter = null;
-            } else {
-                String chapterName = fields[10];
-                String world = fields[11];
-                chapter = new Chapter(chapterName, world);
+            long start = System.nanoTime();
+            long waited = inputWait.get()[0];
+            String command;
+            if (line.length() > 256) {
+                command = "too_long";
+                session.err.println("input too long");
             }
-            marines.put(key, new SpaceMarine(id, name, coordinates, creationDate, health, category, weaponType, meleeWeapon, chapter));
-            i++;
+            else {
+                command = commands.dispatch(session, CommandTable.tokens(line.trim()), session.err);
+                if (command == null) {
+                    command = "unknown";
+                    session.err.println("unknown command");
+                }
+            }
+            if (session.exit) {
+                break;
+            }
+            stats.command(command, System.nanoTime() - start - (inputWait.get()[0] - waited), marines.size());
+            if (batch != null) {
+                batch.finishCommand();
+            }
+            if (!quiet) {
+                out.print("> ");
+            }
+            out.flush();
         }
-        maxid = marines.values().stream().map(SpaceMarine::getId).max(Long::compare).orElse(0L);
-        return errors;
     }
 
     /**
-     * custom class of reading line
-     * @param reader - input stream reader
-     * @return string which we read
-     * @throws IOException
+     * run commands of script file, the whole file is read before the first command runs
+     * @param fileName of script
+     * @param batchMode true if output of commands should be replaced with a summary
+     * @param out where to print
+     * @param scripts real paths of scripts already running, the new one is skipped if it's among them
+     * @param batch summary of batch script already running or null
      */
-    private static String readLine(InputStreamReader reader) throws IOException {
-        StringBuilder builder = new StringBuilder();
-        int ci;
-        while ((ci = reader.read()) != -1) {
-            char c = (char) ci;
-            if (c == '\n') {
-                break;
+    private void executeScript(String fileName, boolean batchMode, PrintStream out, Deque<Path> scripts, BatchSummary batch) {
+        Path script;
+        String text;
+        try {
+            script = Paths.get(fileName).toRealPath();
+            if (!Files.isReadable(script)) {
+                out.println("file not readable");
+                return;
             }
-            builder.append(c);
+            text = new String(Files.readAllBytes(script), Charset.defaultCharset());
+        } catch (NoSuchFileException e) {
+            out.println("file not found");
+            return;
+        } catch (IOException e) {
+            out.println("file not readable");
+            return;
+        }
+        if (scripts.contains(script)) {
+            out.println("script " + fileName + " is already running, skipping execute_script");
+            return;
+        }
+        if (scripts.size() == MAX_SCRIPT_DEPTH) {
+            out.println("maximum recursion depth reached, skipping execute_script");
+            return;
+        }
+        BatchSummary summary = batch == null && batchMode ? new BatchSummary(commands) : batch;
+        scripts.addLast(script);
+        try {
+            interact(new Scanner(text), summary == null ? out : summary.out(), true, scripts, summary);
+        } finally {
+            scripts.removeLast();
+        }
+        if (summary != batch) {
+            summary.print(out);
         }
-        return builder.toString();
     }
 
     /**
-     * method of work with singlearg commands
-     * @param args your args
-     * @param parse function parse
-     * @param isValid - predicate form math
-     * @param commandName
-     * @param argName
-     * @param validityErrorMessage - error if you have them
-     * @param action
-     * @param <T>
+     * same-line arguments of listing commands
+     * @param out where to print wrong arguments
+     * @param args of command
+     * @return true if marines should be printed one per line, false for full form, null if arguments are wrong
      */
-    private <T> void simpleSingleArg(String[] args, Function<String, T> parse, Predicate<T> isValid, String commandName, String argName, String validityErrorMessage, Consumer<T> action) {
+    private static Boolean compactArg(PrintStream out, String[] args) {
         if (args.length == 1) {
-            System.out.println(argName + " required");
+            return false;
         }
-        else if (args.length > 2) {
-            System.out.println(commandName + " only takes 1 same-line argument");
+        if (args.length == 2 && args[1].equals("compact")) {
+            return true;
         }
-        else {
-            try {
-                T t = parse.apply(args[1]);
-                if (isValid.test(t)) {
-                    action.accept(t);
-                }
-                else {
-                    System.out.println(validityErrorMessage);
-                }
-            } catch (Exception e) {
-                    System.out.println("invalid " + argName);
+        out.println(args[0] + " only takes optional 'compact' same-line argument");
+        return null;
+    }
+
+    /**
+     * @param out where to print wrong argument
+     * @param arg same-line argument
+     * @return number of marines or -1 if argument is wrong
+     */
+    private static int countArg(PrintStream out, String arg) {
+        try {
+            int k = Integer.parseInt(arg);
+            if (k > 0) {
+                return k;
             }
+        } catch (NumberFormatException e) {
         }
+        out.println("k should be a positive number");
+        return -1;
     }
 
     /**
-     * method for parse
-     * @param o - line
-     * @return string with parsed line
+     * @param out where to print wrong argument
+     * @param arg same-line argument
+     * @param argName name of argument
+     * @return finite coordinate or null if argument is wrong
      */
-    private static String quotedToString(Object o) {
-        if (o == null) {
-            return "null";
+    private static Double coordinateArg(PrintStream out, String arg, String argName) {
+        try {
+            double value = Double.parseDouble(arg);
+            if (Double.isFinite(value)) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
         }
-        return "\"" + o + "\"";
+        out.println("invalid " + argName);
+        return null;
     }
 
     /**
-     * method for interactive work
-     * @param scanner
-     * @param quiet boolean for hiding console
+     * same-line arguments of paged listing commands
      */
-    public void interact(Scanner scanner, boolean quiet) {
-        if (!quiet) {
-            System.out.print("> ");
+    private static class Page {
+        private final boolean compact;
+        private final int limit;
+        private final String after;
+
+        private Page(boolean compact, int limit, String after) {
+            this.compact = compact;
+            this.limit = limit;
+            this.after = after;
         }
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine();
-            if (line.length() > 256) {
-                System.out.println("input too long");
-                continue;
+    }
+
+    /**
+     * same-line arguments of paged listing commands: [compact] [limit] [after]
+     * @param out where to print wrong arguments
+     * @param args of command
+     * @param afterName name of the argument the page starts after
+     * @return arguments with limit 0 if the whole listing is wanted, null if arguments are wrong
+     */
+    private static Page pageArgs(PrintStream out, String[] args, String afterName) {
+        int i = 1;
+        boolean compact = i < args.length && args[i].equals("compact");
+        if (compact) {
+            i++;
+        }
+        int limit = 0;
+        if (i < args.length) {
+            try {
+                limit = Integer.parseInt(args[i++]);
+            } catch (NumberFormatException e) {
+                limit = -1;
             }
-            String[] args = line.trim().split(" +");
-            if (args.length > 0) {
-                String command = args[0];
-                if (command.equals("help")) {
-                    help();
-                }
-                else if (command.equals("info")) {
-                    info();
-                }
-                else if (command.equals("show")) {
-                    show();
-                }
-                else if (command.equals("insert")) {
-                    simpleSingleArg(args,
-                            Long::parseLong,
-                            k -> !marines.containsKey(k),
-                            "insert",
-                            "key",
-                            "key already present",
-                            k -> insert(k, readMarine(scanner, quiet)));
-                }
-                else if (command.equals("update")) {
-                    simpleSingleArg(args,
-                            Long::parseLong,
-                            id -> marines.values().stream().anyMatch(m -> m.getId().equals(id)),
-                            "update",
-                            "id",
-                            "id not found",
-                            id -> update(id, readMarine(scanner, quiet)));
-                }
-                else if (command.equals("remove_key")) {
-                    simpleSingleArg(args,
-                            Long::parseLong,
-                            marines::containsKey,
-                            "remove_key",
-                            "key",
-                            "key not found",
-                            this::removeKey);
-                }
-                else if (command.equals("clear")) {
-                    clear();
-                }
-                else if (command.equals("save")) {
-                    File file = new File(saveFilePath);
-                    if (!file.exists()) {
-                        try {
-                            file.createNewFile();
-                        } catch (IOException e) {
-                            System.out.println("can't create file");
-                            continue;
-                        }
-                    }
-                    if (file.canWrite()) {
-                        try {
-                            PrintWriter writer = new PrintWriter(saveFilePath);
-                            marines.forEach((key, m) -> writer.println(
-                                    Stream.of(key, m.getId(), m.getName(), m.getCoordinates().getX(),
-                                            m.getCoordinates().getY(), dateFormat.format(m.getCreationDate()),
-                                            m.getHealth(), m.getCategory(), m.getWeaponType(), m.getMeleeWeapon(),
-                                            m.getChapter() == null ? null : m.getChapter().getName(),
-                                            m.getChapter() == null ? null : m.getChapter().getWorld())
-                                            .map(Lab::quotedToString).collect(Collectors.joining(", "))
-                            ));
-                            writer.close();
-                        } catch (FileNotFoundException ignored) {}
-                    }
-                    else {
-                        System.out.println("bad permissions");
-                    }
-                }
-                else if (command.equals("execute_script")) {
-                    if (args.length == 1) {
-                        System.out.println("file required");
-                    }
-                    else if (args.length > 2) {
-                        System.out.println("execute_script only takes 1 argument");
-                    }
-                    else if (scriptDepth == 1) {
-                        System.out.println("maximum recursion depth reached, skipping execute_script");
-                    }
-                    else {
-                        File scriptFile = new File(args[1]);
-                        try {
-                            if (Files.isReadable(scriptFile.toPath())) {
-                                Scanner scriptScanner = new Scanner(new FileInputStream(scriptFile));
-                                scriptDepth++;
-                                interact(scriptScanner, true);
-                                scriptDepth--;
-                            }
-                            else {
-                                System.out.println("file not readable");
-                            }
-                        } catch (FileNotFoundException e) {
-                            System.out.println("file not found");
-                        }
+            if (limit <= 0) {
+                out.println("limit should be a positive number");
+                return null;
+            }
+        }
+        String after = i < args.length ? args[i++] : null;
+        if (i < args.length) {
+            out.println(args[0] + " only takes [compact] [limit] [" + afterName + "] same-line arguments");
+            return null;
+        }
+        return new Page(compact, limit, after);
+    }
+
+    /**
+     * run command that only reads marines, other readers may run at the same time
+     * @param action command
+     */
+    private void read(Runnable action) {
+        lock.readLock().lock();
+        try {
+            action.run();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * run command that only reads marines and print what it printed once the lock is released,
+     * so a client that doesn't read its socket can't hold the lock
+     * @param out where to print
+     * @param action command printing to the stream it gets
+     */
+    private void read(PrintStream out, Consumer<PrintStream> action) {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        read(() -> action.accept(new PrintStream(text, false, charset)));
+        out.print(text.toString(charset));
+    }
+
+    /**
+     * run listing that picks keys of marines under read lock, then read their marines in batches, each under
+     * the lock, and print every batch once it's released, so a client that doesn't read its socket can't hold the lock
+     * and only one batch of marines is kept at once; marines removed in between are skipped, changed ones are printed as they are then
+     * @param printer where to print marines
+     * @param listing gives keys in order they are printed, returns where the next page starts or null
+     */
+    private void listKeys(MarinePrinter printer, Function<LongConsumer, String> listing) {
+        LongStream.Builder found = LongStream.builder();
+        String[] next = new String[1];
+        read(() -> next[0] = listing.apply(found));
+        long[] keys = found.build().toArray();
+        List<Map.Entry<Long, SpaceMarine>> batch = new ArrayList<>(LIST_BATCH);
+        for (int from = 0; from < keys.length; from += LIST_BATCH) {
+            int start = from;
+            read(() -> {
+                for (int i = start; i < Math.min(keys.length, start + LIST_BATCH); i++) {
+                    SpaceMarine marine = marines.get(keys[i]);
+                    if (marine != null) {
+                        batch.add(new AbstractMap.SimpleImmutableEntry<>(keys[i], marine));
                     }
                 }
-                else if (command.equals("exit")) {
-                    break;
-                }
-                else if (command.equals("remove_lower")) {
-                    if (args.length > 1) {
-                        System.out.println("remove_lower doesn't take any same-line arguments");
-                    }
-                    else {
-                        removeLower(readMarine(scanner, quiet));
+            });
+            batch.forEach(e -> printer.marine(e.getKey(), e.getValue()));
+            batch.clear();
+        }
+        if (next[0] != null) {
+            printer.next(next[0]);
+        }
+        printer.flush();
+    }
+
+    /**
+     * walk of marines in some order from cursor
+     * @param <C> type of cursor
+     */
+    private interface Walk<C> {
+        /**
+         * @param after cursor the walk starts after or null to start from the first marine
+         * @param limit most marines to walk
+         * @param action for every marine
+         * @return cursor of the last marine walked if there are more after it, otherwise null
+         */
+        C walk(C after, int limit, BiConsumer<Long, SpaceMarine> action);
+    }
+
+    /**
+     * run listing walked from cursor in batches, every batch is walked under read lock and printed once it's released,
+     * marines changed in between are printed as the walk finds them then
+     * @param printer where to print marines
+     * @param after cursor the listing starts after or null to start from the first marine
+     * @param limit most marines to print
+     * @param walk of one batch
+     * @param <C> type of cursor
+     * @return cursor of the last marine printed if there are more after it, otherwise null
+     */
+    private <C> C listAfter(MarinePrinter printer, C after, int limit, Walk<C> walk) {
+        List<Map.Entry<Long, SpaceMarine>> batch = new ArrayList<>(LIST_BATCH);
+        List<C> cursor = new ArrayList<>(Collections.singletonList(after));
+        int left = limit;
+        do {
+            int size = Math.min(left, LIST_BATCH);
+            read(() -> cursor.set(0, walk.walk(cursor.get(0), size, (k, m) -> batch.add(new AbstractMap.SimpleImmutableEntry<>(k, m)))));
+            batch.forEach(e -> printer.marine(e.getKey(), e.getValue()));
+            left -= batch.size();
+            batch.clear();
+        } while (cursor.get(0) != null && left > 0);
+        printer.flush();
+        return cursor.get(0);
+    }
+
+    /**
+     * run command that changes marines alone, then push its changes to journal,
+     * what it printed is printed once the lock is released; while journal can't be written changes are refused
+     * @param out where to print messages of command and problems with journal
+     * @param action command printing to the stream it gets
+     */
+    private void write(PrintStream out, Consumer<PrintStream> action) {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        PrintStream buffered = new PrintStream(text, false, charset);
+        lock.writeLock().lock();
+        try {
+            if (journal != null && journal.failed()) {
+                buffered.println(JOURNAL_FAILED);
+                return;
+            }
+            action.accept(buffered);
+            flushJournal(buffered);
+        } finally {
+            lock.writeLock().unlock();
+            out.print(text.toString(charset));
+        }
+    }
+
+    /**
+     * @param isValid check of argument that reads marines
+     * @param <T> type of argument
+     * @return the same check made under read lock
+     */
+    private <T> Predicate<T> locked(Predicate<T> isValid) {
+        return t -> {
+            lock.readLock().lock();
+            try {
+                return isValid.test(t);
+            } finally {
+                lock.readLock().unlock();
+            }
+        };
+    }
+
+    /**
+     * start saving all marines in the background, progress and failures are shown by save_status;
+     * with journal changes are already in it, so it's only forced to disk and full snapshot is left to compaction,
+     * unless journal failed and only a snapshot can keep changes made before that
+     */
+    private void save(PrintStream out) {
+        if (journal != null && !journal.failed()) {
+            write(out, o -> {});
+            return;
+        }
+        File file = new File(saveFilePath);
+        if (file.exists() && !file.canWrite()) {
+            out.println("bad permissions");
+            return;
+        }
+        saver.request();
+    }
+
+    /**
+     * wait for saves started by save, autosave or journal compaction to finish,
+     * with autosave on changes not saved yet are saved first
+     */
+    public void awaitSave() {
+        if (autosave.enabled()) {
+            autosave.requestIfDirty();
+        }
+        try {
+            saver.awaitIdle();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * copy marines under read lock and start a new journal, then write the copy without lock into temporary file
+     * and put it in place of save file with atomic rename, so a crash never leaves half-written save file,
+     * records of the copy are dropped from the journal only after that
+     * @param saver to report progress to
+     * @throws IOException
+     */
+    private void saveSnapshot(BackgroundSaver saver) throws IOException {
+        long start = System.nanoTime();
+        Collection<Map.Entry<Long, SpaceMarine>> snapshot;
+        lock.readLock().lock();
+        try {
+            // rotate first, if it fails changes must stay marked as not saved
+            if (journal != null) {
+                journal.rotate();
+            }
+            snapshot = marines.snapshot();
+            autosave.taken();
+        } finally {
+            lock.readLock().unlock();
+        }
+        int written;
+        try {
+            written = writeSnapshot(saver, snapshot);
+        } catch (IOException | RuntimeException e) {
+            autosave.failed();
+            throw e;
+        }
+        autosave.saved();
+        if (journal != null) {
+            journal.dropRotated();
+        }
+        if (mapped && !binarySave) {
+            Runnable swap = lazyStore.reopen(saveFilePath);
+            lock.writeLock().lock();
+            try {
+                swap.run();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        stats.save(System.nanoTime() - start, written);
+    }
+
+    /**
+     * @param saver to report progress to
+     * @param snapshot marines to write
+     * @return number of written marines
+     * @throws IOException
+     */
+    private int writeSnapshot(BackgroundSaver saver, Collection<Map.Entry<Long, SpaceMarine>> snapshot) throws IOException {
+        saver.started(snapshot.size());
+        Path temp = Paths.get(saveFilePath + ".tmp");
+        int written = 0;
+        if (binarySave) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 20))) {
+                MarineBinary.writeHeader(out, snapshot.size());
+                for (Map.Entry<Long, SpaceMarine> e : snapshot) {
+                    MarineBinary.write(out, e.getKey(), e.getValue());
+                    if (++written % PROGRESS_STEP == 0) {
+                        saver.written(written);
                     }
                 }
-                else if (command.equals("replace_if_lower")) {
-                    simpleSingleArg(args,
-                            Long::parseLong,
-                            marines::containsKey,
-                            "replace_if_lower",
-                            "key",
-                            "key not found",
-                            k -> replaceIfLower(k, readMarine(scanner, quiet)));
-                }
-                else if (command.equals("remove_lower_key")) {
-                    simpleSingleArg(args,
-                            Long::parseLong,
-                            k -> true,
-                            "remove_lower_key",
-                            "key",
-                            "",
-                            this::removeLowerKey);
-                }
-                else if (command.equals("group_counting_by_creation_date")) {
-                    groupCountingByCreationDate();
+            }
+            if (written != snapshot.size()) {
+                // broken rows of lazy store are only found while writing
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                    ByteBuffer count = ByteBuffer.allocate(Integer.BYTES).putInt(0, written);
+                    channel.write(count, MarineBinary.COUNT_OFFSET);
                 }
-                else if (command.equals("filter_greater_than_category")) {
-                    if (args.length > 1) {
-                        System.out.println("filter_greater_than_category doesn't take any same-line arguments");
-                    }
-                    else {
-                        AstartesCategory category = readObject(scanner,
-                                AstartesCategory::valueOf,
-                                c -> true,
-                                "Enter category (one of [" +
-                                        Arrays.stream(AstartesCategory.values()).map(AstartesCategory::toString)
-                                                .collect(Collectors.joining(", ")) + "]): ",
-                                "invalid category",
-                                false,
-                                quiet);
-                        filterGreaterThanCategory(category);
+            }
+        }
+        else {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, Charset.defaultCharset())) {
+                for (Map.Entry<Long, SpaceMarine> e : snapshot) {
+                    writer.write(MarineCsv.format(e.getKey(), e.getValue()));
+                    writer.newLine();
+                    if (++written % PROGRESS_STEP == 0) {
+                        saver.written(written);
                     }
                 }
-                else if (command.equals("print_ascending")) {
-                    printAscending();
-                }
-                else {
-                    System.out.println("unknown command");
-                }
-            }
-            if (!quiet) {
-                System.out.print("> ");
             }
         }
+        saver.written(written);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, Paths.get(saveFilePath), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return written;
     }
 
     /**
-     * show help
+     * push changes of the last command to journal and compact it if it grew too big
      */
-    private static void help() {
-        System.out.println("all args written as {arg} must be specified on further lines");
-        System.out.println("help print help");
-        System.out.println("info print info about current state of marines");
-        System.out.println("show print all marines");
-        System.out.println("insert key {marine} add new marine with given key");
-        System.out.println("update id {marine} update marine with given id");
-        System.out.println("remove_key key delete marine with given key");
-        System.out.println("clear delete all marines");
-        System.out.println("save save marines to file");
-        System.out.println("execute_script file_name execute script");
-        System.out.println("exit end execution");
-        System.out.println("remove_lower {marine} delete all marines with health lower than the one given");
-        System.out.println("replace_if_lower key {marine} replace marine with key with given one if the new health is lower than the old");
-        System.out.println("remove_lower_key key delete all marines with key lower than given");
-        System.out.println("group_counting_by_creation_date print number of marines with each creation date");
-        System.out.println("filter_greater_than_category {category} print marines with categories higher than the one given");
-        System.out.println("print_ascending print all marines sorted by health");
+    private void flushJournal(PrintStream out) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.flush();
+            if (journal.needsCompaction()) {
+                saver.request();
+            }
+        } catch (IOException e) {
+            out.println("can't write journal: " + e.getMessage() + ", " + JOURNAL_FAILED);
+        }
     }
 
     /**
-     * show info
+     * show help
      */
-    private void info() {
-        System.out.println("type: HashMap<Long, SpaceMarine>");
-        System.out.println("number of elements: " + marines.size());
-        if (!marines.isEmpty()) {
-            System.out.println("newest marine created on " + marines.values().stream().max(Comparator.comparing(SpaceMarine::getCreationDate)));
-        }
+    private void help(PrintStream out) {
+        out.println("all args written as {arg} must be specified on further lines");
+        commands.help(out);
     }
 
     /**
-     * print information
-     * @param key from hasmap
-     * @param marine elemnt of collection
+     * show info
      */
-    private static void printMarine(Long key, SpaceMarine marine) {
-        System.out.println("Key: " + key);
-        System.out.println("ID: " + marine.getId());
-        System.out.println("Name: " + marine.getName());
-        System.out.println("Coordinates: " + marine.getCoordinates());
-        System.out.println("Creation date: " + dateFormat.format(marine.getCreationDate()));
-        System.out.println("Health: " + marine.getHealth());
-        System.out.println("Category: " + marine.getCategory());
-        System.out.println("Weapon type: " + marine.getWeaponType());
-        System.out.println("Melee weapon: " + marine.getMeleeWeapon());
-        if (marine.getChapter() == null) {
-            System.out.println("Chapter: null");
+    private void info(PrintStream out) {
+        // asked before size, so broken lines of lazy store found while indexing aren't counted
+        Long newest = marines.newestCreationDate();
+        out.println("type: " + marines.storeType());
+        out.println("number of elements: " + marines.size());
+        if (mapped) {
+            out.println("marines changed since save file was mapped: " + lazyStore.changed());
         }
-        else {
-            System.out.println("Chapter name: " + marine.getChapter().getName());
-            System.out.println("Chapter world: " + marine.getChapter().getWorld());
+        if (newest != null) {
+            out.println("newest marine created on " + DateCodec.format(newest));
+            out.println("health: min " + marines.minHealth() + ", max " + marines.maxHealth()
+                    + ", average " + (float) (marines.healthSum() / marines.size()));
+            String chapters = marines.chapterReport();
+            if (chapters != null) {
+                out.println(chapters);
+            }
         }
     }
 
     /**
      * reading the object - the same with simple arg
+     * @param out where to print prompts
      * @param scanner
      * @param conv
      * @param isValid
@@ -465,14 +989,17 @@ public class Lab {
      * @param <T>
      * @return
      */
-    private static <T> T readObject(Scanner scanner, Function<String, T> conv, Predicate<T> isValid, String promptMessage, String errorMessage, boolean canBeEmpty, boolean quiet) {
+    private static <T> T readObject(PrintStream out, Scanner scanner, Function<String, T> conv, Predicate<T> isValid, String promptMessage, String errorMessage, boolean canBeEmpty, boolean quiet) {
         while (true) {
             if (!quiet) {
-                System.out.print(promptMessage);
+                out.print(promptMessage);
+                out.flush();
             }
+            long start = System.nanoTime();
             String line = scanner.nextLine();
+            inputWait.get()[0] += System.nanoTime() - start;
             if (line.length() > 256) {
-                System.out.println("input too long");
+                out.println("input too long");
                 continue;
             }
             else if (canBeEmpty && line.isEmpty()) {
@@ -484,19 +1011,22 @@ public class Lab {
                     return t;
                 }
             } catch (Exception ignored) {}
-            System.out.println(errorMessage);
+            out.println(errorMessage);
         }
     }
 
     /**
      *  read marine to interact
+     * @param out the same with interact
      * @param scanner the same with interact
      * @param quiet the same with interact
      * @return
      */
-    private SpaceMarine readMarine(Scanner scanner, boolean quiet) {
-        System.out.println("Note: all decimal fractions are stored with limited precision and may be rounded from the value given");
-        String name = readObject(scanner,
+    private SpaceMarine readMarine(PrintStream out, Scanner scanner, boolean quiet) {
+        if (!quiet) {
+            out.println("Note: all decimal fractions are stored with limited precision and may be rounded from the value given");
+        }
+        String name = readObject(out, scanner,
                 s -> s,
                 s -> !s.isEmpty(),
                 "Enter name: ",
@@ -504,14 +1034,14 @@ public class Lab {
                 false,
                 quiet);
 
-        double x = readObject(scanner,
+        double x = readObject(out, scanner,
                 Double::parseDouble,
                 d -> true,
                 "Enter x coordinate (decimal fraction): ",
                 "not a valid coordinate",
                 false,
                 quiet);
-        Double y = readObject(scanner,
+        Double y = readObject(out, scanner,
                 Double::parseDouble,
                 d -> true,
                 "Enter y coordinate (decimal fraction): ",
@@ -521,9 +1051,9 @@ public class Lab {
 
         Coordinates coordinates = new Coordinates(x, y);
 
-        Date creationDate = new Date();
+        long creationDate = System.currentTimeMillis();
 
-        Float health = readObject(scanner,
+        Float health = readObject(out, scanner,
                 Float::parseFloat,
                 f -> f > 0,
                 "Enter health (decimal fraction, must be >0): ",
@@ -531,7 +1061,7 @@ public class Lab {
                 false,
                 quiet);
 
-        AstartesCategory category = readObject(scanner,
+        AstartesCategory category = readObject(out, scanner,
                 AstartesCategory::valueOf,
                 c -> true,
                 "Enter a category (one of [" + Arrays.stream(AstartesCategory.values())
@@ -541,7 +1071,7 @@ public class Lab {
                 true,
                 quiet);
 
-        Weapon weaponType = readObject(scanner,
+        Weapon weaponType = readObject(out, scanner,
                 Weapon::valueOf,
                 w -> true,
                 "Enter a weapong type (one of [" + Arrays.stream(Weapon.values())
@@ -551,7 +1081,7 @@ public class Lab {
                 false,
                 quiet);
 
-        MeleeWeapon meleeWeapon = readObject(scanner,
+        MeleeWeapon meleeWeapon = readObject(out, scanner,
                 MeleeWeapon::valueOf,
                 mw -> true,
                 "Enter a melee weapon type (one of [" + Arrays.stream(MeleeWeapon.values())
@@ -561,7 +1091,7 @@ public class Lab {
                 false,
                 quiet);
 
-        boolean needChapter = readObject(scanner,
+        boolean needChapter = readObject(out, scanner,
                 s -> {
                     if (s.equals("y")) {
                         return true;
@@ -578,7 +1108,7 @@ public class Lab {
                 quiet);
         Chapter chapter = null;
         if (needChapter) {
-            String chapterName = readObject(scanner,
+            String chapterName = readObject(out, scanner,
                     cn -> cn,
                     s -> !s.isEmpty(),
                     "Enter chapter name: ",
@@ -586,7 +1116,7 @@ public class Lab {
                     false,
                     quiet);
 
-            String world = readObject(scanner,
+            String world = readObject(out, scanner,
                     w -> w,
                     w -> true,
                     "Enter world name or leave empty: ",
@@ -595,15 +1125,22 @@ public class Lab {
                     quiet);
             chapter = new Chapter(chapterName, world);
         }
-        return new SpaceMarine(++maxid, name, coordinates, creationDate, health,
+        return new SpaceMarine(maxid.incrementAndGet(), name, coordinates, creationDate, health,
                 category, weaponType, meleeWeapon, chapter);
     }
 
 
-    private void show() {
-        marines.forEach((key, marine) -> {
-            printMarine(key, marine);
-            System.out.println();
+    private void show(MarinePrinter printer) {
+        listKeys(printer, keys -> {
+            marines.forEachKey(keys);
+            return null;
+        });
+    }
+
+    private void showPage(MarinePrinter printer, Long after, int limit) {
+        listKeys(printer, keys -> {
+            Long next = marines.forEachKeyAfter(after, limit, keys);
+            return next == null ? null : next.toString();
         });
     }
 
@@ -618,9 +1155,7 @@ public class Lab {
      */
     private void update(Long id, SpaceMarine marine) {
         marine.setId(id);
-        marines.keySet().stream()
-                .filter(k -> marines.get(k).getId().equals(id))
-                .forEach(k -> marines.put(k, marine));
+        marines.put(marines.keyOfId(id), marine);
     }
 
     private void removeKey(Long key) {
@@ -632,9 +1167,7 @@ public class Lab {
     }
 
     private void removeLower(SpaceMarine marine) {
-        marines.keySet().stream()
-                .filter(k -> marines.get(k).getHealth() < marine.getHealth())
-                .forEach(marines::remove);
+        marines.removeHealthBelow(marine.getHealth());
     }
 
     private void replaceIfLower(Long key, SpaceMarine marine) {
@@ -644,35 +1177,93 @@ public class Lab {
     }
 
     private void removeLowerKey(Long key) {
-        marines.keySet().stream()
-                .filter(k -> k < key)
-                .forEach(marines::remove);
+        marines.removeKeysBelow(key);
     }
 
-    private void groupCountingByCreationDate() {
-        Map<Date, Long> groups = marines.values().stream()
-                .collect(Collectors.groupingBy(SpaceMarine::getCreationDate
-                        , Collectors.counting()));
-        groups.forEach((date, number)
-                -> System.out.println(dateFormat.format(date) + ": " + number));
+    /**
+     * dates are printed in batches like marines of {@link #listAfter}
+     */
+    private void groupCountingByCreationDate(MarinePrinter printer) {
+        List<Map.Entry<Long, Long>> batch = new ArrayList<>(LIST_BATCH);
+        Long after = null;
+        do {
+            Long from = after;
+            read(() -> (from == null ? marines.countsByCreationDate() : marines.countsByCreationDate().tailMap(from, false)).entrySet().stream()
+                    .limit(LIST_BATCH)
+                    .forEach(e -> batch.add(new AbstractMap.SimpleImmutableEntry<>(e))));
+            batch.forEach(e -> printer.dateCount(e.getKey(), e.getValue()));
+            after = batch.size() == LIST_BATCH ? batch.get(LIST_BATCH - 1).getKey() : null;
+            batch.clear();
+        } while (after != null);
+        printer.flush();
     }
 
-    private void filterGreaterThanCategory(AstartesCategory category) {
-        for (Map.Entry<Long, SpaceMarine> e : marines.entrySet()) {
-            AstartesCategory marineCat = e.getValue().getCategory();
-            if (marineCat!= null && marineCat.ordinal() > category.ordinal()) {
-                printMarine(e.getKey(), e.getValue());
-                System.out.println();
-            }
+    private void filterGreaterThanCategory(MarinePrinter printer, AstartesCategory category) {
+        Walk<Map.Entry<AstartesCategory, Long>> walk = (after, limit, action) -> marines.forEachCategoryAboveAfter(category, after, limit, action);
+        listAfter(printer, null, Integer.MAX_VALUE, walk);
+    }
+
+    private void query(MarinePrinter printer, Query query) {
+        listKeys(printer, keys -> {
+            query.run(query.plans(marines).get(0), (k, m) -> keys.accept(k));
+            return null;
+        });
+    }
+
+    /**
+     * print plan chosen for query and the other ones, then run it only counting matches
+     */
+    private void explain(PrintStream out, Query query) {
+        List<Query.Plan> plans = query.plans(marines);
+        out.println("query: " + query);
+        out.println("plan: " + plans.get(0));
+        plans.subList(1, plans.size()).forEach(p -> out.println("rejected: " + p));
+        long start = System.nanoTime();
+        long[] matched = new long[1];
+        long walked = query.run(plans.get(0), (k, m) -> matched[0]++);
+        out.printf("matched %d of %d walked marines in %.3f ms%n", matched[0], walked, (System.nanoTime() - start) / 1e6);
+    }
+
+    private void within(MarinePrinter printer, double x1, double y1, double x2, double y2) {
+        listKeys(printer, keys -> {
+            marines.forEachWithin(x1, y1, x2, y2, (k, m) -> keys.accept(k));
+            return null;
+        });
+    }
+
+    private void nearest(MarinePrinter printer, int k, double x, double y) {
+        listKeys(printer, keys -> {
+            marines.forEachNearest(k, x, y, (key, m) -> keys.accept(key));
+            return null;
+        });
+    }
+
+    private void bottomK(MarinePrinter printer, int k) {
+        listAfter(printer, null, k, this::forEachAscendingAfter);
+    }
+
+    private void topK(MarinePrinter printer, int k) {
+        listKeys(printer, keys -> {
+            marines.forEachStrongest(k, (key, m) -> keys.accept(key));
+            return null;
+        });
+    }
+
+    private void printAscending(MarinePrinter printer) {
+        listAfter(printer, null, Integer.MAX_VALUE, this::forEachAscendingAfter);
+    }
+
+    private void printAscendingPage(MarinePrinter printer, Float afterHealth, Long afterKey, int limit) {
+        Map.Entry<Float, Long> after = afterHealth == null ? null : new AbstractMap.SimpleImmutableEntry<>(afterHealth, afterKey);
+        Map.Entry<Float, Long> next = listAfter(printer, after, limit, this::forEachAscendingAfter);
+        if (next != null) {
+            printer.next(next.getKey() + "/" + next.getValue());
+            printer.flush();
         }
     }
 
-    private void printAscending() {
-        marines.entrySet().stream()
-                .sorted(Map.Entry.comparingByValue())
-                .forEach(e -> {
-                    printMarine(e.getKey(), e.getValue());
-                    System.out.println();
-                });
+    private Map.Entry<Float, Long> forEachAscendingAfter(Map.Entry<Float, Long> after, int limit, BiConsumer<Long, SpaceMarine> action) {
+        return after == null ? marines.forEachAscendingAfter(null, null, limit, action)
+                : marines.forEachAscendingAfter(after.getKey(), after.getValue(), limit, action);
     }
 }
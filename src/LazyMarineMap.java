@@ -0,0 +1,575 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * map of marines over memory-mapped text save file: only key and position of every line are kept,
+ * marines are parsed from the file whenever they are asked for, the last ones asked for by key are kept
+ * in a small cache so hot keys aren't parsed again, marines put or removed later are kept
+ * aside until the next save, then the new file is mapped instead.
+ * Lines with good key and id but broken other fields are dropped when they are first parsed,
+ * till then they are counted in size. Reading from several threads is safe as long as nobody changes the map,
+ * snapshots can be read while it changes
+ */
+public class LazyMarineMap extends AbstractMap<Long, SpaceMarine> {
+
+    /**
+     * biggest part of file mapped at once, lines never cross parts
+     */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    /**
+     * number of parsed rows kept for later reads, a row takes the slot of its number modulo this
+     */
+    private static final int CACHE_SIZE = 4096;
+
+    /**
+     * mapped file with position of every good line, never changed after it's built
+     */
+    private static class Mapping {
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+        private long[] keys = new long[1024];
+        private int[] segmentOfRow = new int[1024];
+        private int[] offsets = new int[1024];
+        private int[] lengths = new int[1024];
+        private int rows = 0;
+        private long maxId = 0;
+        private long bytes = 0;
+        private int lines = 0;
+
+        private void add(long key, int segment, int offset, int length) {
+            if (rows == keys.length) {
+                int capacity = rows * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                segmentOfRow = Arrays.copyOf(segmentOfRow, capacity);
+                offsets = Arrays.copyOf(offsets, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+            }
+            keys[rows] = key;
+            segmentOfRow[rows] = segment;
+            offsets[rows] = offset;
+            lengths[rows] = length;
+            rows++;
+        }
+
+        private String line(int row) {
+            byte[] bytes = new byte[lengths[row]];
+            segments.get(segmentOfRow[row]).get(offsets[row], bytes, 0, bytes.length);
+            return new String(bytes, CHARSET);
+        }
+    }
+
+    /**
+     * marine parsed from row, immutable so threads can share cache slots without locks
+     */
+    private static class Parsed {
+        private final int row;
+        private final SpaceMarine marine;
+
+        private Parsed(int row, SpaceMarine marine) {
+            this.row = row;
+            this.marine = marine;
+        }
+    }
+
+    /**
+     * contents of map: rows of mapping still there, marines put after mapping and rows found broken,
+     * replaced as a whole after saving so readers never see half of it
+     */
+    private static class State {
+        private final Mapping mapping;
+        private final LongIntMap rows;
+        private final BitSet live;
+        private final int liveAtStart;
+        private final Map<Long, SpaceMarine> overlay;
+        private final Set<Long> broken = ConcurrentHashMap.newKeySet();
+
+        /**
+         * live rows not known to be broken, kept so size doesn't count bits of all rows
+         */
+        private final AtomicInteger good;
+
+        /**
+         * marines of rows parsed by {@link LazyMarineMap#get}, rows never change so slots stay right while the mapping is used
+         */
+        private final Parsed[] parsed;
+
+        private State(Mapping mapping) {
+            this.mapping = mapping;
+            rows = new LongIntMap(mapping.rows);
+            live = new BitSet(mapping.rows);
+            for (int row = 0; row < mapping.rows; row++) {
+                int earlier = rows.get(mapping.keys[row]);
+                if (earlier != LongIntMap.MISSING) {
+                    live.clear(earlier);
+                }
+                rows.put(mapping.keys[row], row);
+                live.set(row);
+            }
+            liveAtStart = rows.size();
+            overlay = new HashMap<>();
+            good = new AtomicInteger(liveAtStart);
+            parsed = new Parsed[CACHE_SIZE];
+        }
+
+        /**
+         * copy that can only be walked, key lookups aren't copied
+         * @param other state to copy
+         */
+        private State(State other) {
+            mapping = other.mapping;
+            rows = null;
+            live = (BitSet) other.live.clone();
+            liveAtStart = other.liveAtStart;
+            overlay = new HashMap<>(other.overlay);
+            broken.addAll(other.broken);
+            good = new AtomicInteger(other.good.get());
+            parsed = other.parsed;
+        }
+
+        private int size() {
+            return good.get() + overlay.size();
+        }
+
+        /**
+         * drop live row of key
+         */
+        private void dropRow(long key, int row) {
+            rows.remove(key);
+            live.clear(row);
+            if (!broken.remove(key)) {
+                good.decrementAndGet();
+            }
+        }
+    }
+
+    private volatile State state = new State(new Mapping());
+
+    /**
+     * keys put or removed since the last snapshot, to keep them when the file written from it is mapped
+     */
+    private final Set<Long> changedSinceSnapshot = new HashSet<>();
+
+    private boolean clearedSinceSnapshot = false;
+
+    private long nanos = 0;
+
+    /**
+     * map save file and index its lines, reading stops at the first empty line like with {@link SaveFileLoader}
+     * @param path of text save file
+     * @param onError called for every line with bad key or id, with its number and message
+     * @throws CustomFileException if file can't be read
+     */
+    public void open(String path, SaveFileLoader.LineHandler onError) throws CustomFileException {
+        long start = System.nanoTime();
+        try {
+            state = new State(map(path, onError));
+        } catch (NoSuchFileException e) {
+            throw CustomFileException.notFound();
+        } catch (IOException e) {
+            throw CustomFileException.readProblem();
+        } finally {
+            nanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * @return copy of marines as they are now, walking it parses rows of file like walking the map,
+     * only which rows are still there and marines kept aside are copied
+     */
+    public Collection<Entry<Long, SpaceMarine>> snapshot() {
+        State copy = new State(state);
+        int size = copy.size();
+        changedSinceSnapshot.clear();
+        clearedSinceSnapshot = false;
+        return new AbstractCollection<Entry<Long, SpaceMarine>>() {
+            @Override
+            public Iterator<Entry<Long, SpaceMarine>> iterator() {
+                return new EntryIterator(copy);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * map file written from the last snapshot, reading it doesn't touch the map
+     * @param path of text save file
+     * @return action that puts the new file in place of the old one and keeps marines put or removed
+     * since the snapshot aside, must run when nobody else uses the map
+     * @throws IOException if file can't be read
+     */
+    public Runnable reopen(String path) throws IOException {
+        State next = new State(map(path, (i, message) -> {}));
+        return () -> {
+            State current = state;
+            if (clearedSinceSnapshot) {
+                next.rows.clear();
+                next.live.clear();
+                next.good.set(0);
+            }
+            for (Long key : changedSinceSnapshot) {
+                int row = next.rows.get(key);
+                if (row != LongIntMap.MISSING) {
+                    next.dropRow(key, row);
+                }
+                SpaceMarine marine = current.overlay.get(key);
+                if (marine != null) {
+                    next.overlay.put(key, marine);
+                }
+            }
+            state = next;
+        };
+    }
+
+    private static Mapping map(String path, SaveFileLoader.LineHandler onError) throws IOException {
+        Mapping mapping = new Mapping();
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            mapping.bytes = size;
+            long from = 0;
+            while (from < size) {
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(SEGMENT_SIZE, size - from));
+                int end = lastLineEnd(segment, from + segment.limit() == size);
+                if (end == 0) {
+                    throw new IOException("line longer than " + SEGMENT_SIZE + " bytes");
+                }
+                mapping.segments.add(segment);
+                if (!index(mapping, mapping.segments.size() - 1, end, onError)) {
+                    break;
+                }
+                from += end;
+            }
+        }
+        return mapping;
+    }
+
+    /**
+     * @param segment part of file
+     * @param last true if segment reaches the end of file
+     * @return length of segment up to the last whole line
+     */
+    private static int lastLineEnd(MappedByteBuffer segment, boolean last) {
+        int end = segment.limit();
+        if (last) {
+            return end;
+        }
+        while (end > 0 && segment.get(end - 1) != '\n') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * remember position, key and id of every line of segment
+     * @return false if an empty line was met and reading should stop
+     */
+    private static boolean index(Mapping mapping, int segmentIndex, int end, SaveFileLoader.LineHandler onError) {
+        MappedByteBuffer segment = mapping.segments.get(segmentIndex);
+        byte[] head = new byte[64];
+        int lineStart = 0;
+        int commas = 0;
+        int headEnd = -1;
+        for (int p = 0; p <= end; p++) {
+            byte b = p < end ? segment.get(p) : (byte) '\n';
+            if (b == ',' && ++commas == 2) {
+                headEnd = p + 1;
+            }
+            if (b != '\n') {
+                continue;
+            }
+            int length = p - lineStart;
+            if (length == 0) {
+                return p == end;
+            }
+            mapping.lines++;
+            try {
+                if (headEnd == -1) {
+                    MarineCsv.parse(new String(line(segment, lineStart, length), CHARSET));
+                }
+                else {
+                    if (head.length < headEnd - lineStart) {
+                        head = new byte[headEnd - lineStart];
+                    }
+                    segment.get(lineStart, head, 0, headEnd - lineStart);
+                    long[] keyAndId = MarineCsv.keyAndId(new String(head, 0, headEnd - lineStart, CHARSET));
+                    mapping.add(keyAndId[0], segmentIndex, lineStart, length);
+                    mapping.maxId = Math.max(mapping.maxId, keyAndId[1]);
+                }
+            } catch (CustomFileException e) {
+                onError.accept(mapping.lines, e.getMessage());
+            }
+            lineStart = p + 1;
+            commas = 0;
+            headEnd = -1;
+        }
+        return true;
+    }
+
+    private static byte[] line(MappedByteBuffer segment, int offset, int length) {
+        byte[] bytes = new byte[length];
+        segment.get(offset, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * @return biggest id in mapped file or among marines put after it
+     */
+    public long maxId() {
+        State current = state;
+        return Math.max(current.mapping.maxId, current.overlay.values().stream().mapToLong(SpaceMarine::getId).max().orElse(0));
+    }
+
+    /**
+     * throughput of {@link #open}
+     * @return line in the same form as {@link SaveFileLoader#report}
+     */
+    public String report() {
+        Mapping mapping = state.mapping;
+        double seconds = Math.max(nanos, 1) / 1e9;
+        double megabytes = mapping.bytes / (1024.0 * 1024.0);
+        return String.format("indexed %d rows (%.1f MB) in %d ms: %.0f rows/s, %.1f MB/s, marines are parsed when used",
+                mapping.lines, megabytes, nanos / 1_000_000, mapping.lines / seconds, megabytes / seconds);
+    }
+
+    /**
+     * @return number of marines put or removed since the file was mapped
+     */
+    public int changed() {
+        State current = state;
+        return current.overlay.size() + current.liveAtStart - current.rows.size();
+    }
+
+    @Override
+    public int size() {
+        return state.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public SpaceMarine get(Object key) {
+        if (!(key instanceof Long)) {
+            return null;
+        }
+        State current = state;
+        SpaceMarine marine = current.overlay.get(key);
+        if (marine != null) {
+            return marine;
+        }
+        int row = current.rows.get((Long) key);
+        if (row == LongIntMap.MISSING) {
+            return null;
+        }
+        int slot = row % CACHE_SIZE;
+        Parsed cached = current.parsed[slot];
+        if (cached == null || cached.row != row) {
+            marine = parse(current, row);
+            if (marine == null) {
+                return null;
+            }
+            cached = new Parsed(row, marine);
+            current.parsed[slot] = cached;
+        }
+        return cached.marine;
+    }
+
+    @Override
+    public SpaceMarine put(Long key, SpaceMarine marine) {
+        SpaceMarine old = get(key);
+        forgetRow(key);
+        state.overlay.put(key, marine);
+        changedSinceSnapshot.add(key);
+        return old;
+    }
+
+    @Override
+    public SpaceMarine remove(Object key) {
+        if (!(key instanceof Long)) {
+            return null;
+        }
+        SpaceMarine old = get(key);
+        forgetRow((Long) key);
+        state.overlay.remove(key);
+        changedSinceSnapshot.add((Long) key);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        State current = state;
+        current.rows.clear();
+        current.live.clear();
+        current.broken.clear();
+        current.good.set(0);
+        current.overlay.clear();
+        changedSinceSnapshot.clear();
+        clearedSinceSnapshot = true;
+    }
+
+    /**
+     * drop row of file with given key, marine with it is now only aside or nowhere
+     */
+    private void forgetRow(Long key) {
+        State current = state;
+        int row = current.rows.get(key);
+        if (row != LongIntMap.MISSING) {
+            current.dropRow(key, row);
+        }
+    }
+
+    /**
+     * @return keys of marines, file rows are not parsed for them
+     */
+    @Override
+    public Set<Long> keySet() {
+        State current = state;
+        return new AbstractSet<Long>() {
+            @Override
+            public Iterator<Long> iterator() {
+                Iterator<Long> overlay = current.overlay.keySet().iterator();
+                return new Iterator<Long>() {
+                    private int row = nextRow(current, 0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return row < current.mapping.rows || overlay.hasNext();
+                    }
+
+                    @Override
+                    public Long next() {
+                        if (row < current.mapping.rows) {
+                            long key = current.mapping.keys[row];
+                            row = nextRow(current, row + 1);
+                            return key;
+                        }
+                        return overlay.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return LazyMarineMap.this.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<Entry<Long, SpaceMarine>> entrySet() {
+        State current = state;
+        return new AbstractSet<Entry<Long, SpaceMarine>>() {
+            @Override
+            public Iterator<Entry<Long, SpaceMarine>> iterator() {
+                return new EntryIterator(current);
+            }
+
+            @Override
+            public int size() {
+                return LazyMarineMap.this.size();
+            }
+        };
+    }
+
+    /**
+     * @return first row from given one that is still in the map and not known to be broken, number of rows if none
+     */
+    private static int nextRow(State state, int row) {
+        row = state.live.nextSetBit(row);
+        while (row != -1 && state.broken.contains(state.mapping.keys[row])) {
+            row = state.live.nextSetBit(row + 1);
+        }
+        return row == -1 ? state.mapping.rows : row;
+    }
+
+    /**
+     * @return marine of row or null if its line turns out to be broken
+     */
+    private static SpaceMarine parse(State state, int row) {
+        long key = state.mapping.keys[row];
+        if (state.broken.contains(key)) {
+            return null;
+        }
+        try {
+            return MarineCsv.parse(state.mapping.line(row)).getValue();
+        } catch (CustomFileException e) {
+            if (state.broken.add(key)) {
+                state.good.decrementAndGet();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * iterator over rows of file in their order and then over marines put later, every row is parsed as it's reached
+     */
+    private static class EntryIterator implements Iterator<Entry<Long, SpaceMarine>> {
+        private final State state;
+        private final Iterator<Entry<Long, SpaceMarine>> overlay;
+        private int row = 0;
+        private Entry<Long, SpaceMarine> next;
+
+        private EntryIterator(State state) {
+            this.state = state;
+            overlay = state.overlay.entrySet().iterator();
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && (row = nextRow(state, row)) < state.mapping.rows) {
+                SpaceMarine marine = parse(state, row);
+                if (marine != null) {
+                    next = new SimpleImmutableEntry<>(state.mapping.keys[row], marine);
+                }
+                row++;
+            }
+            if (next == null && overlay.hasNext()) {
+                next = overlay.next();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<Long, SpaceMarine> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Entry<Long, SpaceMarine> current = next;
+            advance();
+            return current;
+        }
+    }
+}
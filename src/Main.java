@@ -1,3 +1,4 @@
+import java.io.IOException;
 import java.util.Comparator;
 import java.util.Map;
 import java.util.Scanner;
@@ -14,6 +15,7 @@ public class Main {
 
         try {
             Map<Integer, String> errors =  lab.readFile();
+            System.out.println(lab.loadReport());
             if (!errors.isEmpty()) {
                 System.out.println("Errors reading file:");
                 errors.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(e ->
@@ -24,6 +26,18 @@ public class Main {
             return;
         }
 
-        lab.interact(scanner, false);
+        String port = System.getenv("PORT");
+        if (port == null) {
+            lab.interact(scanner, System.out, false);
+            lab.awaitSave();
+            return;
+        }
+        try {
+            new Server(lab, Integer.parseInt(port)).run();
+        } catch (NumberFormatException e) {
+            System.out.println("PORT should be a number");
+        } catch (IOException e) {
+            System.out.println("can't start server: " + e.getMessage());
+        }
     }
 }
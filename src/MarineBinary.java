@@ -0,0 +1,197 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Map;
+
+/**
+ * binary format of save file: header with magic, version and number of records,
+ * then records of fixed-width fields, enum ordinals, length-prefixed strings and epoch dates
+ */
+public class MarineBinary {
+
+    /**
+     * first bytes of binary save file, never a valid start of text one
+     */
+    public static final byte[] MAGIC = {'S', 'M', 'B', 0};
+
+    public static final int VERSION = 1;
+
+    /**
+     * position of record count in header, to fix it when fewer records got written than announced
+     */
+    public static final int COUNT_OFFSET = MAGIC.length + 2;
+
+    private static final int MAX_STRING_LENGTH = 1 << 24;
+
+    private static final byte NO_CHAPTER = 0;
+
+    private static final byte CHAPTER_WITHOUT_WORLD = 1;
+
+    private static final byte CHAPTER_WITH_WORLD = 2;
+
+    /**
+     * record whose layout is broken, so where the next one starts is unknown and reading has to stop
+     */
+    public static class BrokenRecordException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * standart constructor
+         * @param message of exception
+         */
+        public BrokenRecordException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @param bytes first bytes of file
+     * @return true if file starts with binary header
+     */
+    public static boolean isBinary(byte[] bytes) {
+        if (bytes.length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param out stream to write to
+     * @param count number of records that will follow
+     * @throws IOException
+     */
+    public static void writeHeader(DataOutput out, int count) throws IOException {
+        out.write(MAGIC);
+        out.writeShort(VERSION);
+        out.writeInt(count);
+    }
+
+    /**
+     * @param in stream positioned at the beginning of file
+     * @return number of records in file
+     * @throws CustomFileException if header is broken or version is unknown
+     * @throws IOException
+     */
+    public static int readHeader(DataInput in) throws CustomFileException, IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!isBinary(magic)) {
+            throw new CustomFileException("not a binary save file");
+        }
+        int version = in.readShort();
+        if (version != VERSION) {
+            throw new CustomFileException("unsupported binary save file version " + version);
+        }
+        return in.readInt();
+    }
+
+    /**
+     * @param out stream to write to
+     * @param key of marine
+     * @param m marine
+     * @throws IOException
+     */
+    public static void write(DataOutput out, Long key, SpaceMarine m) throws IOException {
+        out.writeLong(key);
+        out.writeLong(m.getId());
+        writeString(out, m.getName());
+        out.writeDouble(m.getCoordinates().getX());
+        out.writeDouble(m.getCoordinates().getY());
+        out.writeLong(m.getCreationTime());
+        out.writeFloat(m.getHealth());
+        out.writeByte(m.getCategory() == null ? -1 : m.getCategory().ordinal());
+        out.writeByte(m.getWeaponType().ordinal());
+        out.writeByte(m.getMeleeWeapon().ordinal());
+        Chapter chapter = m.getChapter();
+        if (chapter == null) {
+            out.writeByte(NO_CHAPTER);
+        }
+        else if (chapter.getWorld() == null) {
+            out.writeByte(CHAPTER_WITHOUT_WORLD);
+            writeString(out, chapter.getName());
+        }
+        else {
+            out.writeByte(CHAPTER_WITH_WORLD);
+            writeString(out, chapter.getName());
+            writeString(out, chapter.getWorld());
+        }
+    }
+
+    /**
+     * read one record, the whole record is always consumed so the next one can be read after a bad one
+     * @param in stream positioned at the beginning of record
+     * @return key and marine
+     * @throws CustomFileException with description of bad field
+     * @throws BrokenRecordException if chapter kind or string length is broken
+     * @throws IOException if stream ended in the middle of record
+     */
+    public static Map.Entry<Long, SpaceMarine> read(DataInput in) throws CustomFileException, IOException {
+        long key = in.readLong();
+        long id = in.readLong();
+        String name = readString(in);
+        double x = in.readDouble();
+        double y = in.readDouble();
+        long creationDate = in.readLong();
+        float health = in.readFloat();
+        int category = in.readByte();
+        int weaponType = in.readByte();
+        int meleeWeapon = in.readByte();
+        byte chapterKind = in.readByte();
+        Chapter chapter = null;
+        if (chapterKind == CHAPTER_WITHOUT_WORLD) {
+            chapter = new Chapter(readString(in), null);
+        }
+        else if (chapterKind == CHAPTER_WITH_WORLD) {
+            chapter = new Chapter(readString(in), readString(in));
+        }
+        else if (chapterKind != NO_CHAPTER) {
+            throw new BrokenRecordException("broken chapter of record");
+        }
+
+        if (name.isEmpty()) {
+            throw new CustomFileException("invalid name");
+        }
+        if (health <= 0) {
+            throw new CustomFileException("invalid health");
+        }
+        if (category < -1 || category >= AstartesCategory.values().length) {
+            throw new CustomFileException("invalid category");
+        }
+        if (weaponType < 0 || weaponType >= Weapon.values().length) {
+            throw new CustomFileException("invalid weapon type");
+        }
+        if (meleeWeapon < 0 || meleeWeapon >= MeleeWeapon.values().length) {
+            throw new CustomFileException("invalid melee weapon type");
+        }
+        if (chapter != null && chapter.getName().isEmpty()) {
+            throw new CustomFileException("invalid chapter name");
+        }
+        return new AbstractMap.SimpleEntry<>(key, new SpaceMarine(id, name, new Coordinates(x, y), creationDate, health,
+                category == -1 ? null : AstartesCategory.values()[category],
+                Weapon.values()[weaponType], MeleeWeapon.values()[meleeWeapon], chapter));
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new BrokenRecordException("broken string length");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
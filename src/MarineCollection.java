@@ -0,0 +1,737 @@
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+
+/**
+ * collection of marines by key, indexes are kept in sync on every change
+ * or built on first use when the store was filled directly
+ */
+public class MarineCollection {
+
+    /**
+     * listener of changes of collection
+     */
+    public interface MutationListener {
+        /**
+         * marine was added or replaced
+         * @param key of marine
+         * @param marine new value
+         */
+        void onPut(Long key, SpaceMarine marine);
+
+        /**
+         * marine was removed
+         * @param key of marine
+         */
+        void onRemove(Long key);
+
+        /**
+         * all marines were removed
+         */
+        void onClear();
+    }
+
+    private final Map<Long, SpaceMarine> marines;
+
+    private final Map<Long, Long> keysById = new HashMap<>();
+
+    private final NavigableMap<Float, NavigableSet<Long>> keysByHealth = new TreeMap<>();
+
+    private final Map<AstartesCategory, NavigableSet<Long>> keysByCategory = new EnumMap<>(AstartesCategory.class);
+
+    private final NavigableSet<Long> keysWithoutCategory = new TreeSet<>();
+
+    private final NavigableMap<Long, Long> countsByDate = new TreeMap<>();
+
+    private final SpatialGrid keysByCoordinates = new SpatialGrid();
+
+    private double healthSum = 0;
+
+    private final ChapterDictionary chapters = new ChapterDictionary();
+
+    private long chapterReferences = 0;
+
+    private final List<MutationListener> listeners = new ArrayList<>();
+
+    /**
+     * false while indexes are put off until they are first needed
+     */
+    private volatile boolean indexed = true;
+
+    /**
+     * standart constructor
+     * @param marines empty map to store marines in, a {@link NavigableMap} makes key ranges cheap
+     */
+    public MarineCollection(Map<Long, SpaceMarine> marines) {
+        this.marines = marines;
+    }
+
+    /**
+     * store was filled directly and not through this collection, indexes are built from it when first needed,
+     * so commands that only use keys never make every marine to be read
+     */
+    public void reindexLater() {
+        indexed = false;
+    }
+
+    /**
+     * @param listener to be told about every following change
+     */
+    public void addListener(MutationListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return name of map the marines are stored in
+     */
+    public String storeType() {
+        return marines.getClass().getSimpleName() + "<Long, SpaceMarine>";
+    }
+
+    /**
+     * @return columnar store to check filters on its columns or null if marines are stored otherwise
+     */
+    public ColumnarMarineMap columns() {
+        return marines instanceof ColumnarMarineMap ? (ColumnarMarineMap) marines : null;
+    }
+
+    /**
+     * @param key of marine
+     * @return marine or null if there is no such key
+     */
+    public SpaceMarine get(Long key) {
+        return marines.get(key);
+    }
+
+    public boolean containsKey(Long key) {
+        return marines.containsKey(key);
+    }
+
+    public boolean containsId(Long id) {
+        ensureIndexed();
+        return keysById.containsKey(id);
+    }
+
+    /**
+     * @param id of marine
+     * @return key of marine with given id or null if there is no such id
+     */
+    public Long keyOfId(Long id) {
+        ensureIndexed();
+        return keysById.get(id);
+    }
+
+    /**
+     * add marine or replace the one with the same key
+     * @param key of marine
+     * @param marine new value
+     */
+    public void put(Long key, SpaceMarine marine) {
+        if (marine.getChapter() != null) {
+            marine.setChapter(chapters.intern(marine.getChapter()));
+        }
+        SpaceMarine old = marines.put(key, marine);
+        if (indexed) {
+            if (old != null) {
+                unindex(key, old);
+            }
+            index(key, marine);
+        }
+        listeners.forEach(l -> l.onPut(key, marine));
+    }
+
+    /**
+     * @param key of marine
+     * @return removed marine or null if there was no such key
+     */
+    public SpaceMarine remove(Long key) {
+        SpaceMarine old = marines.remove(key);
+        if (old != null) {
+            if (indexed) {
+                unindex(key, old);
+            }
+            listeners.forEach(l -> l.onRemove(key));
+        }
+        return old;
+    }
+
+    public void clear() {
+        marines.clear();
+        clearIndexes();
+        indexed = true;
+        listeners.forEach(MutationListener::onClear);
+    }
+
+    /**
+     * remove all marines with health lower than given, only lower part of health index is visited
+     * @param health bound, marines with exactly this health stay
+     * @return number of removed marines
+     */
+    public int removeHealthBelow(Float health) {
+        ensureIndexed();
+        List<Long> keys = new ArrayList<>();
+        keysByHealth.headMap(health, false).values().forEach(keys::addAll);
+        keys.forEach(this::remove);
+        return keys.size();
+    }
+
+    /**
+     * remove all marines with key lower than given, with ordered store only removed entries are visited
+     * @param key bound, marine with exactly this key stays
+     * @return number of removed marines
+     */
+    public int removeKeysBelow(Long key) {
+        if (marines instanceof NavigableMap) {
+            Map<Long, SpaceMarine> head = ((NavigableMap<Long, SpaceMarine>) marines).headMap(key, false);
+            int removed = head.size();
+            head.forEach((k, m) -> {
+                if (indexed) {
+                    unindex(k, m);
+                }
+                listeners.forEach(l -> l.onRemove(k));
+            });
+            head.clear();
+            return removed;
+        }
+        List<Long> keys = new ArrayList<>();
+        marines.keySet().forEach(k -> {
+            if (k < key) {
+                keys.add(k);
+            }
+        });
+        keys.forEach(this::remove);
+        return keys.size();
+    }
+
+    /**
+     * walk marines in order of {@link SpaceMarine#compareTo}, marines with equal health go by key
+     * @param action for every marine
+     */
+    public void forEachAscending(BiConsumer<Long, SpaceMarine> action) {
+        ensureIndexed();
+        keysByHealth.values().forEach(keys -> keys.forEach(k -> action.accept(k, marines.get(k))));
+    }
+
+    /**
+     * walk weakest marines, only the first buckets of the health index are visited
+     * @param limit most marines to walk
+     * @param action for every marine in order of {@link #forEachAscending}
+     */
+    public void forEachWeakest(int limit, BiConsumer<Long, SpaceMarine> action) {
+        forEachAscendingAfter(null, null, limit, action);
+    }
+
+    /**
+     * walk strongest marines, only the last buckets of the health index are visited
+     * @param limit most marines to walk
+     * @param action for every marine in reverse order of {@link #forEachAscending}
+     */
+    public void forEachStrongest(int limit, BiConsumer<Long, SpaceMarine> action) {
+        ensureIndexed();
+        int walked = 0;
+        for (NavigableSet<Long> keys : keysByHealth.descendingMap().values()) {
+            for (Long k : keys.descendingSet()) {
+                if (walked == limit) {
+                    return;
+                }
+                action.accept(k, marines.get(k));
+                walked++;
+            }
+        }
+    }
+
+    /**
+     * walk keys of one page in key order, marines aren't read for them; with ordered store it costs as much as the page,
+     * otherwise keys are picked in one walk over all of them keeping the lowest ones in a heap as big as the page,
+     * so nothing is kept between pages
+     * @param after key the page starts after or null to start from the lowest key
+     * @param limit most keys to walk
+     * @param action for every key
+     * @return the last key walked if there are more after it, otherwise null
+     */
+    public Long forEachKeyAfter(Long after, int limit, LongConsumer action) {
+        if (marines instanceof NavigableMap) {
+            NavigableSet<Long> keys = ((NavigableMap<Long, SpaceMarine>) marines).navigableKeySet();
+            if (after != null) {
+                keys = keys.tailSet(after, false);
+            }
+            Long last = null;
+            int walked = 0;
+            for (Long k : keys) {
+                if (walked == limit) {
+                    return last;
+                }
+                action.accept(k);
+                last = k;
+                walked++;
+            }
+            return null;
+        }
+        long[] page;
+        boolean[] more = {false};
+        do {
+            PriorityQueue<Long> lowest = new PriorityQueue<>(Math.min(limit, marines.size()) + 1, Comparator.reverseOrder());
+            more[0] = false;
+            marines.keySet().forEach(k -> {
+                if (after != null && k <= after) {
+                    return;
+                }
+                if (lowest.size() < limit) {
+                    lowest.add(k);
+                    return;
+                }
+                more[0] = true;
+                if (k < lowest.peek()) {
+                    lowest.poll();
+                    lowest.add(k);
+                }
+            });
+            page = lowest.stream().mapToLong(Long::longValue).sorted().toArray();
+            // broken lines of lazy store found only now are left out of the next walk
+        } while (!Arrays.stream(page).allMatch(marines::containsKey));
+        for (long k : page) {
+            action.accept(k);
+        }
+        return more[0] ? page[page.length - 1] : null;
+    }
+
+    /**
+     * walk one page of marines in order of {@link #forEachAscending}, only the health index is used
+     * @param afterHealth health of marine the page starts after or null to start from the lowest
+     * @param afterKey key of that marine
+     * @param limit most marines to walk
+     * @param action for every marine
+     * @return health and key of the last marine walked if there are more after it, otherwise null
+     */
+    public Map.Entry<Float, Long> forEachAscendingAfter(Float afterHealth, Long afterKey, int limit, BiConsumer<Long, SpaceMarine> action) {
+        ensureIndexed();
+        NavigableMap<Float, NavigableSet<Long>> buckets = afterHealth == null ? keysByHealth : keysByHealth.tailMap(afterHealth, true);
+        Map.Entry<Float, Long> last = null;
+        int walked = 0;
+        for (Map.Entry<Float, NavigableSet<Long>> bucket : buckets.entrySet()) {
+            NavigableSet<Long> keys = bucket.getKey().equals(afterHealth) ? bucket.getValue().tailSet(afterKey, false) : bucket.getValue();
+            for (Long k : keys) {
+                if (walked == limit) {
+                    return last;
+                }
+                action.accept(k, marines.get(k));
+                last = new AbstractMap.SimpleImmutableEntry<>(bucket.getKey(), k);
+                walked++;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * walk one page of marines with category higher than given, in order of categories and then keys,
+     * only buckets of those categories are visited
+     * @param category bound, marines without category or with this one are skipped
+     * @param after category and key of marine the page starts after or null to start from the first
+     * @param limit most marines to walk
+     * @param action for every marine
+     * @return category and key of the last marine walked if there are more after it, otherwise null
+     */
+    public Map.Entry<AstartesCategory, Long> forEachCategoryAboveAfter(AstartesCategory category, Map.Entry<AstartesCategory, Long> after,
+                                                                       int limit, BiConsumer<Long, SpaceMarine> action) {
+        ensureIndexed();
+        Map.Entry<AstartesCategory, Long> last = null;
+        int walked = 0;
+        for (Map.Entry<AstartesCategory, NavigableSet<Long>> bucket : keysByCategory.entrySet()) {
+            AstartesCategory c = bucket.getKey();
+            if (c.ordinal() <= category.ordinal() || after != null && c.ordinal() < after.getKey().ordinal()) {
+                continue;
+            }
+            NavigableSet<Long> keys = after != null && c == after.getKey() ? bucket.getValue().tailSet(after.getValue(), false) : bucket.getValue();
+            for (Long k : keys) {
+                if (walked == limit) {
+                    return last;
+                }
+                action.accept(k, marines.get(k));
+                last = new AbstractMap.SimpleImmutableEntry<>(c, k);
+                walked++;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param low lowest health or null for no lower bound
+     * @param lowInclusive true if marines with exactly low health are counted
+     * @param high highest health or null for no upper bound
+     * @param highInclusive true if marines with exactly high health are counted
+     * @return number of marines with health between bounds, only buckets between them are visited
+     */
+    public int countHealthBetween(Float low, boolean lowInclusive, Float high, boolean highInclusive) {
+        ensureIndexed();
+        int count = 0;
+        for (NavigableSet<Long> keys : healthBetween(low, lowInclusive, high, highInclusive).values()) {
+            count += keys.size();
+        }
+        return count;
+    }
+
+    /**
+     * walk marines with health between bounds in order of {@link #forEachAscending}
+     * @param action for every marine
+     * @see #countHealthBetween
+     */
+    public void forEachHealthBetween(Float low, boolean lowInclusive, Float high, boolean highInclusive, BiConsumer<Long, SpaceMarine> action) {
+        ensureIndexed();
+        healthBetween(low, lowInclusive, high, highInclusive).values().forEach(keys -> keys.forEach(k -> action.accept(k, marines.get(k))));
+    }
+
+    private NavigableMap<Float, NavigableSet<Long>> healthBetween(Float low, boolean lowInclusive, Float high, boolean highInclusive) {
+        NavigableMap<Float, NavigableSet<Long>> buckets = keysByHealth;
+        if (low != null) {
+            buckets = buckets.tailMap(low, lowInclusive);
+        }
+        if (high != null) {
+            buckets = buckets.headMap(high, highInclusive);
+        }
+        return buckets;
+    }
+
+    /**
+     * @param categories to count
+     * @param withoutCategory true to count marines without category too
+     * @return number of marines with one of given categories, taken from sizes of category buckets
+     */
+    public int countCategories(Set<AstartesCategory> categories, boolean withoutCategory) {
+        ensureIndexed();
+        int count = withoutCategory ? keysWithoutCategory.size() : 0;
+        for (AstartesCategory category : categories) {
+            NavigableSet<Long> keys = keysByCategory.get(category);
+            count += keys == null ? 0 : keys.size();
+        }
+        return count;
+    }
+
+    /**
+     * walk marines with one of given categories, only their buckets are visited
+     * @param action for every marine
+     * @see #countCategories
+     */
+    public void forEachWithCategories(Set<AstartesCategory> categories, boolean withoutCategory, BiConsumer<Long, SpaceMarine> action) {
+        ensureIndexed();
+        if (withoutCategory) {
+            keysWithoutCategory.forEach(k -> action.accept(k, marines.get(k)));
+        }
+        for (AstartesCategory category : categories) {
+            NavigableSet<Long> keys = keysByCategory.get(category);
+            if (keys != null) {
+                keys.forEach(k -> action.accept(k, marines.get(k)));
+            }
+        }
+    }
+
+    /**
+     * walk marines with coordinates inside rectangle, edges included, only grid cells it covers are visited
+     * @param action for every marine in order of keys
+     */
+    public void forEachWithin(double x1, double y1, double x2, double y2, BiConsumer<Long, SpaceMarine> action) {
+        ensureIndexed();
+        LongStream.Builder found = LongStream.builder();
+        keysByCoordinates.forEachWithin(x1, y1, x2, y2, found::add);
+        found.build().sorted().forEach(k -> action.accept(k, marines.get(k)));
+    }
+
+    /**
+     * walk marines closest to point, cells of the grid are visited from the point outwards
+     * @param k number of marines
+     * @param action for every marine, closest first, equally close ones in order of keys
+     */
+    public void forEachNearest(int k, double x, double y, BiConsumer<Long, SpaceMarine> action) {
+        ensureIndexed();
+        for (long key : keysByCoordinates.nearest(k, x, y)) {
+            action.accept(key, marines.get(key));
+        }
+    }
+
+    /**
+     * guess how many keys are between bounds from the lowest and the highest key, assuming keys are spread evenly;
+     * if store isn't ordered, it's the number of keys to look up one by one when there are fewer of them
+     * than marines, otherwise the size of collection, so walking the range is never thought cheaper than walking the store
+     * @param low lowest key or null for no lower bound
+     * @param high highest key or null for no upper bound
+     * @return estimated number of marines
+     */
+    public int estimateKeysBetween(Long low, Long high) {
+        if (!(marines instanceof NavigableMap)) {
+            long width = lookupWidth(low, high);
+            return width < 0 ? marines.size() : (int) width;
+        }
+        NavigableSet<Long> keys = ((NavigableMap<Long, SpaceMarine>) marines).navigableKeySet();
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        double first = keys.first();
+        double last = keys.last();
+        double from = low == null ? first : Math.max(low, first);
+        double to = high == null ? last : Math.min(high, last);
+        if (from > to) {
+            return 0;
+        }
+        if (first == last) {
+            return keys.size();
+        }
+        return (int) Math.min(keys.size(), Math.ceil(keys.size() * (to - from + 1) / (last - first + 1)));
+    }
+
+    /**
+     * walk marines with keys between bounds in key order, only keys between them are visited,
+     * unless store isn't ordered and there are more of them than marines, then all keys are walked and the ones between are sorted
+     * @param action for every marine
+     * @see #estimateKeysBetween
+     */
+    public void forEachKeyBetween(Long low, boolean lowInclusive, Long high, boolean highInclusive, BiConsumer<Long, SpaceMarine> action) {
+        long width = marines instanceof NavigableMap ? -1 : lookupWidth(low, high);
+        if (width >= 0) {
+            for (long i = 0; i < width; i++) {
+                long k = low + i;
+                if (k == low && !lowInclusive || k == high && !highInclusive) {
+                    continue;
+                }
+                SpaceMarine marine = marines.get(k);
+                if (marine != null) {
+                    action.accept(k, marine);
+                }
+            }
+            return;
+        }
+        if (!(marines instanceof NavigableMap)) {
+            LongStream.Builder between = LongStream.builder();
+            marines.keySet().forEach(k -> {
+                if ((low == null || k > low || k.equals(low) && lowInclusive) && (high == null || k < high || k.equals(high) && highInclusive)) {
+                    between.add(k);
+                }
+            });
+            between.build().sorted().forEach(k -> {
+                SpaceMarine marine = marines.get(k);
+                if (marine != null) {
+                    action.accept(k, marine);
+                }
+            });
+            return;
+        }
+        NavigableSet<Long> keys = ((NavigableMap<Long, SpaceMarine>) marines).navigableKeySet();
+        if (low != null) {
+            keys = keys.tailSet(low, lowInclusive);
+        }
+        if (high != null) {
+            keys = keys.headSet(high, highInclusive);
+        }
+        for (Long k : keys) {
+            SpaceMarine marine = marines.get(k);
+            if (marine != null) {
+                action.accept(k, marine);
+            }
+        }
+    }
+
+    /**
+     * @return number of marines for every creation date in epoch millis, oldest date first
+     */
+    public NavigableMap<Long, Long> countsByCreationDate() {
+        ensureIndexed();
+        return Collections.unmodifiableNavigableMap(countsByDate);
+    }
+
+    /**
+     * @return creation date of the newest marine in epoch millis or null if collection is empty
+     */
+    public Long newestCreationDate() {
+        ensureIndexed();
+        return countsByDate.isEmpty() ? null : countsByDate.lastKey();
+    }
+
+    /**
+     * @return lowest health or null if collection is empty
+     */
+    public Float minHealth() {
+        ensureIndexed();
+        return keysByHealth.isEmpty() ? null : keysByHealth.firstKey();
+    }
+
+    /**
+     * @return highest health or null if collection is empty
+     */
+    public Float maxHealth() {
+        ensureIndexed();
+        return keysByHealth.isEmpty() ? null : keysByHealth.lastKey();
+    }
+
+    public double healthSum() {
+        ensureIndexed();
+        return healthSum;
+    }
+
+    /**
+     * @return how many distinct chapters and strings are shared by how many marines,
+     * null if marines are read from mapped file and don't share chapters
+     */
+    public String chapterReport() {
+        if (marines instanceof LazyMarineMap) {
+            return null;
+        }
+        ensureIndexed();
+        return "chapters: " + chapters.distinctChapters() + " distinct shared by " + chapterReferences
+                + " marines, " + chapters.distinctStrings() + " distinct chapter names and worlds";
+    }
+
+    public int size() {
+        return marines.size();
+    }
+
+    public boolean isEmpty() {
+        return marines.isEmpty();
+    }
+
+    /**
+     * @return read-only view of entries
+     */
+    public Set<Map.Entry<Long, SpaceMarine>> entrySet() {
+        return Collections.unmodifiableMap(marines).entrySet();
+    }
+
+    /**
+     * entries as they are now, later changes of collection don't show in them, so they can be walked without lock;
+     * marines are never changed after put, so only the store is copied and not the marines
+     * @return copy of entries
+     */
+    public Collection<Map.Entry<Long, SpaceMarine>> snapshot() {
+        if (marines instanceof LazyMarineMap) {
+            return ((LazyMarineMap) marines).snapshot();
+        }
+        if (marines instanceof ColumnarMarineMap) {
+            return ((ColumnarMarineMap) marines).snapshot().entrySet();
+        }
+        List<Map.Entry<Long, SpaceMarine>> copy = new ArrayList<>(marines.size());
+        marines.forEach((key, marine) -> copy.add(new AbstractMap.SimpleImmutableEntry<>(key, marine)));
+        return copy;
+    }
+
+    /**
+     * @return read-only view of marines
+     */
+    public Collection<SpaceMarine> values() {
+        return Collections.unmodifiableCollection(marines.values());
+    }
+
+    public void forEach(BiConsumer<Long, SpaceMarine> action) {
+        marines.forEach(action);
+    }
+
+    /**
+     * walk keys in order of store, marines aren't read for them
+     * @param action for every key
+     */
+    public void forEachKey(LongConsumer action) {
+        marines.keySet().forEach(action::accept);
+    }
+
+    /**
+     * build indexes from the store if they were put off, safe to call from several readers at once
+     */
+    private void ensureIndexed() {
+        if (indexed) {
+            return;
+        }
+        synchronized (this) {
+            if (!indexed) {
+                clearIndexes();
+                marines.forEach(this::index);
+                indexed = true;
+            }
+        }
+    }
+
+    private void clearIndexes() {
+        keysById.clear();
+        keysByHealth.clear();
+        keysByCategory.clear();
+        keysWithoutCategory.clear();
+        countsByDate.clear();
+        keysByCoordinates.clear();
+        healthSum = 0;
+        chapters.clear();
+        chapterReferences = 0;
+    }
+
+    /**
+     * @return number of keys between bounds if both are set and it's below size of collection, otherwise -1
+     */
+    private long lookupWidth(Long low, Long high) {
+        if (low == null || high == null) {
+            return -1;
+        }
+        if (high < low) {
+            return 0;
+        }
+        long width = high - low;
+        return width < 0 || width >= marines.size() ? -1 : width + 1;
+    }
+
+    private void index(Long key, SpaceMarine marine) {
+        keysById.put(marine.getId(), key);
+        keysByHealth.computeIfAbsent(marine.getHealth(), h -> new TreeSet<>()).add(key);
+        categoryBucket(marine.getCategory()).add(key);
+        countsByDate.merge(marine.getCreationTime(), 1L, Long::sum);
+        keysByCoordinates.add(key, marine.getCoordinates().getX(), marine.getCoordinates().getY());
+        healthSum += marine.getHealth();
+        if (marine.getChapter() != null) {
+            chapters.retain(marine.getChapter());
+            chapterReferences++;
+        }
+    }
+
+    private void unindex(Long key, SpaceMarine marine) {
+        keysById.remove(marine.getId(), key);
+        NavigableSet<Long> keys = keysByHealth.get(marine.getHealth());
+        if (keys != null) {
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                keysByHealth.remove(marine.getHealth());
+            }
+        }
+        AstartesCategory category = marine.getCategory();
+        if (category == null) {
+            keysWithoutCategory.remove(key);
+        }
+        else if (keysByCategory.containsKey(category)) {
+            keysByCategory.get(category).remove(key);
+            if (keysByCategory.get(category).isEmpty()) {
+                keysByCategory.remove(category);
+            }
+        }
+        countsByDate.computeIfPresent(marine.getCreationTime(), (date, count) -> count == 1 ? null : count - 1);
+        keysByCoordinates.remove(key, marine.getCoordinates().getX(), marine.getCoordinates().getY());
+        healthSum -= marine.getHealth();
+        if (marine.getChapter() != null) {
+            chapters.release(marine.getChapter());
+            chapterReferences--;
+        }
+    }
+
+    private NavigableSet<Long> categoryBucket(AstartesCategory category) {
+        if (category == null) {
+            return keysWithoutCategory;
+        }
+        return keysByCategory.computeIfAbsent(category, c -> new TreeSet<>());
+    }
+}
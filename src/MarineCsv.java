@@ -0,0 +1,198 @@
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * text format of one marine in save file, safe to use from several threads
+ */
+public class MarineCsv {
+
+    /**
+     * parse one line of save file, safe to call from several threads
+     * @param line from file
+     * @return key and marine
+     * @throws CustomFileException with description of bad field
+     */
+    public static Map.Entry<Long, SpaceMarine> parse(String line) throws CustomFileException {
+        String[] fields = fields(line);
+        if (fields.length != 12) {
+            throw new CustomFileException("only " + fields.length + "fields");
+        }
+        long key = key(fields[0]);
+        long id = id(fields[1]);
+        String name = fields[2];
+        if (name.isEmpty()) {
+            throw new CustomFileException("invalid name");
+        }
+        double x;
+        double y;
+        try {
+            x = Double.parseDouble(fields[3]);
+        } catch (NumberFormatException e) {
+            throw new CustomFileException("invalid x coordinate");
+        }
+        try {
+            y = Double.parseDouble(fields[4]);
+        } catch (NumberFormatException e) {
+            throw new CustomFileException("invalid y coordinate");
+        }
+        Coordinates coordinates = new Coordinates(x, y);
+        long creationDate;
+        try {
+            creationDate = DateCodec.parse(fields[5]);
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new CustomFileException("invalid date");
+        }
+        float health;
+        try {
+            health = Float.parseFloat(fields[6]);
+            if (health <= 0) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException e) {
+            throw new CustomFileException("invalid health");
+        }
+        AstartesCategory category;
+        if (fields[7] == null) {
+            category = null;
+        } else {
+            try {
+                category = AstartesCategory.valueOf(fields[7]);
+            } catch (IllegalArgumentException e) {
+                throw new CustomFileException("invalid category");
+            }
+        }
+        Weapon weaponType;
+        try {
+            weaponType = Weapon.valueOf(fields[8]);
+        } catch (IllegalArgumentException e) {
+            throw new CustomFileException("invalid weapon type");
+        }
+        MeleeWeapon meleeWeapon;
+        try {
+            meleeWeapon = MeleeWeapon.valueOf(fields[9]);
+        } catch (IllegalArgumentException e) {
+            throw new CustomFileException("invalid melee weapon type");
+        }
+        Chapter chapter;
+        if (fields[10] == null) {
+            chapter = null;
+        } else {
+            String chapterName = fields[10];
+            String world = fields[11];
+            chapter = new Chapter(chapterName, world);
+        }
+        return new AbstractMap.SimpleEntry<>(key, new SpaceMarine(id, name, coordinates, creationDate, health, category, weaponType, meleeWeapon, chapter));
+    }
+
+    /**
+     * parse only key and id, for indexes that don't need the whole marine
+     * @param head beginning of line up to and including the comma after id
+     * @return key and id
+     * @throws CustomFileException with description of bad field
+     */
+    public static long[] keyAndId(String head) throws CustomFileException {
+        String[] fields = fields(head);
+        if (fields.length != 2) {
+            throw new CustomFileException("only " + fields.length + "fields");
+        }
+        return new long[] {key(fields[0]), id(fields[1])};
+    }
+
+    private static long key(String field) throws CustomFileException {
+        try {
+            return Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            throw new CustomFileException("invalid key");
+        }
+    }
+
+    private static long id(String field) throws CustomFileException {
+        try {
+            return Long.parseLong(field);
+        } catch (NumberFormatException e) {
+            throw new CustomFileException("invalid id");
+        }
+    }
+
+    /**
+     * split line into fields without regular expressions: fields are separated by commas with any spaces around them,
+     * unquoted null is null and one quote is taken off both ends of quoted fields
+     * @param line from file
+     * @return fields, empty ones at the end of line are dropped
+     * @throws CustomFileException if a field is quoted only on one end
+     */
+    private static String[] fields(String line) throws CustomFileException {
+        String[] fields = new String[12];
+        int count = 0;
+        int nonEmpty = 0;
+        int start = 0;
+        int length = line.length();
+        while (true) {
+            int comma = line.indexOf(',', start);
+            int end = comma == -1 ? length : comma;
+            int fieldEnd = end;
+            if (comma != -1) {
+                while (fieldEnd > start && line.charAt(fieldEnd - 1) == ' ') {
+                    fieldEnd--;
+                }
+            }
+            if (count == fields.length) {
+                fields = Arrays.copyOf(fields, count * 2);
+            }
+            fields[count++] = field(line, start, fieldEnd);
+            if (fieldEnd > start) {
+                nonEmpty = count;
+            }
+            if (comma == -1) {
+                break;
+            }
+            start = comma + 1;
+            while (start < length && line.charAt(start) == ' ') {
+                start++;
+            }
+        }
+        return count == nonEmpty && count == fields.length ? fields : Arrays.copyOf(fields, nonEmpty);
+    }
+
+    private static String field(String line, int start, int end) throws CustomFileException {
+        boolean opens = end > start && line.charAt(start) == '"';
+        boolean closes = end > start && line.charAt(end - 1) == '"';
+        if (opens != closes) {
+            throw new CustomFileException("bad quoting");
+        }
+        if (!opens) {
+            return end - start == 4 && line.startsWith("null", start) ? null : line.substring(start, end);
+        }
+        return end - start == 1 ? "" : line.substring(start + 1, end - 1);
+    }
+
+    /**
+     * format marine as one line of save file
+     * @param key of marine
+     * @param m marine
+     * @return line without line break
+     */
+    public static String format(Long key, SpaceMarine m) {
+        return Stream.of(key, m.getId(), m.getName(), m.getCoordinates().getX(),
+                m.getCoordinates().getY(), DateCodec.format(m.getCreationTime()),
+                m.getHealth(), m.getCategory(), m.getWeaponType(), m.getMeleeWeapon(),
+                m.getChapter() == null ? null : m.getChapter().getName(),
+                m.getChapter() == null ? null : m.getChapter().getWorld())
+                .map(MarineCsv::quotedToString).collect(Collectors.joining(", "));
+    }
+
+    /**
+     * method for parse
+     * @param o - line
+     * @return string with parsed line
+     */
+    private static String quotedToString(Object o) {
+        if (o == null) {
+            return "null";
+        }
+        return "\"" + o + "\"";
+    }
+}
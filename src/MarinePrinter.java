@@ -0,0 +1,111 @@
+import java.io.PrintStream;
+
+/**
+ * printer for listing commands, marines are formatted into one reused buffer
+ * which is written out in big blocks instead of a println for every field
+ */
+public class MarinePrinter {
+
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    private static final String NL = System.lineSeparator();
+
+    private final PrintStream out;
+
+    private final boolean compact;
+
+    private final StringBuilder buffer = new StringBuilder(BLOCK_SIZE + 1024);
+
+    /**
+     * standart constructor
+     * @param out where to print
+     * @param compact true to print every marine on one line
+     */
+    public MarinePrinter(PrintStream out, boolean compact) {
+        this.out = out;
+        this.compact = compact;
+    }
+
+    /**
+     * @param key of marine
+     * @param marine to print
+     */
+    public void marine(Long key, SpaceMarine marine) {
+        if (compact) {
+            compactMarine(key, marine);
+        }
+        else {
+            fullMarine(key, marine);
+        }
+        if (buffer.length() >= BLOCK_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * @param date of group in epoch millis
+     * @param count of marines in group
+     */
+    public void dateCount(Long date, Long count) {
+        buffer.append(DateCodec.format(date)).append(": ").append(count).append(NL);
+        if (buffer.length() >= BLOCK_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * print where the next page starts
+     * @param cursor to give to the listing command for the next page
+     */
+    public void next(String cursor) {
+        buffer.append("next: ").append(cursor).append(NL);
+    }
+
+    /**
+     * write out what's left in buffer
+     */
+    public void flush() {
+        out.append(buffer);
+        buffer.setLength(0);
+    }
+
+    private void fullMarine(Long key, SpaceMarine marine) {
+        buffer.append("Key: ").append(key).append(NL)
+                .append("ID: ").append(marine.getId()).append(NL)
+                .append("Name: ").append(marine.getName()).append(NL)
+                .append("Coordinates: ").append(marine.getCoordinates()).append(NL)
+                .append("Creation date: ").append(DateCodec.format(marine.getCreationTime())).append(NL)
+                .append("Health: ").append(marine.getHealth()).append(NL)
+                .append("Category: ").append(marine.getCategory()).append(NL)
+                .append("Weapon type: ").append(marine.getWeaponType()).append(NL)
+                .append("Melee weapon: ").append(marine.getMeleeWeapon()).append(NL);
+        if (marine.getChapter() == null) {
+            buffer.append("Chapter: null").append(NL);
+        }
+        else {
+            buffer.append("Chapter name: ").append(marine.getChapter().getName()).append(NL)
+                    .append("Chapter world: ").append(marine.getChapter().getWorld()).append(NL);
+        }
+        buffer.append(NL);
+    }
+
+    private void compactMarine(Long key, SpaceMarine marine) {
+        buffer.append(key)
+                .append(" id=").append(marine.getId())
+                .append(" name=").append(marine.getName())
+                .append(' ').append(marine.getCoordinates())
+                .append(' ').append(DateCodec.format(marine.getCreationTime()))
+                .append(" health=").append(marine.getHealth())
+                .append(" category=").append(marine.getCategory())
+                .append(" weapon=").append(marine.getWeaponType())
+                .append(" melee=").append(marine.getMeleeWeapon());
+        if (marine.getChapter() == null) {
+            buffer.append(" chapter=null");
+        }
+        else {
+            buffer.append(" chapter=").append(marine.getChapter().getName())
+                    .append(" world=").append(marine.getChapter().getWorld());
+        }
+        buffer.append(NL);
+    }
+}
@@ -0,0 +1,577 @@
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * query over fields of marines like "health < 5 and weapon = BOLTGUN and chapter.world = Macragge":
+ * comparisons of field with value joined with and, or and brackets, and binds tighter than or,
+ * values with spaces are written in double quotes, null is only compared with = and !=.
+ * Planner walks the index of key, id, health or category when a comparison joined with and fits it
+ * and it's cheaper than walking the whole collection, every walked marine is checked against the whole query.
+ * On columnar store the whole collection is walked by checking the query on columns, only matches are materialized
+ */
+public class Query {
+
+    /**
+     * field of marine a query can compare, compared values are of the same type, creation dates are compared as numbers of days
+     */
+    enum Field {
+        KEY("key", (k, m) -> k, ColumnarMarineMap::key, Long::valueOf, false),
+        ID("id", (k, m) -> m.getId(), ColumnarMarineMap::id, Long::valueOf, false),
+        NAME("name", (k, m) -> m.getName(), ColumnarMarineMap::name, s -> s, false),
+        X("x", (k, m) -> m.getCoordinates().getX(), ColumnarMarineMap::x, Double::valueOf, false),
+        Y("y", (k, m) -> m.getCoordinates().getY(), ColumnarMarineMap::y, Double::valueOf, false),
+        CREATION_DATE("creation_date", (k, m) -> DateCodec.day(m.getCreationTime()), (c, row) -> DateCodec.day(c.creationTime(row)),
+                s -> DateCodec.day(DateCodec.parse(s)), false),
+        HEALTH("health", (k, m) -> m.getHealth(), ColumnarMarineMap::health, Float::valueOf, false),
+        CATEGORY("category", (k, m) -> m.getCategory(), ColumnarMarineMap::category, AstartesCategory::valueOf, true),
+        WEAPON("weapon", (k, m) -> m.getWeaponType(), ColumnarMarineMap::weaponType, Weapon::valueOf, false),
+        MELEE("melee", (k, m) -> m.getMeleeWeapon(), ColumnarMarineMap::meleeWeapon, MeleeWeapon::valueOf, false),
+        CHAPTER_NAME("chapter.name", (k, m) -> m.getChapter() == null ? null : m.getChapter().getName(),
+                (c, row) -> c.chapter(row) == null ? null : c.chapter(row).getName(), s -> s, true),
+        CHAPTER_WORLD("chapter.world", (k, m) -> m.getChapter() == null ? null : m.getChapter().getWorld(),
+                (c, row) -> c.chapter(row) == null ? null : c.chapter(row).getWorld(), s -> s, true);
+
+        private final String name;
+        private final BiFunction<Long, SpaceMarine, Object> getter;
+        private final BiFunction<ColumnarMarineMap, Integer, Object> column;
+        private final Function<String, Object> parser;
+        private final boolean nullable;
+
+        Field(String name, BiFunction<Long, SpaceMarine, Object> getter, BiFunction<ColumnarMarineMap, Integer, Object> column,
+              Function<String, Object> parser, boolean nullable) {
+            this.name = name;
+            this.getter = getter;
+            this.column = column;
+            this.parser = parser;
+            this.nullable = nullable;
+        }
+
+        private static Field named(String name) {
+            for (Field field : values()) {
+                if (field.name.equals(name)) {
+                    return field;
+                }
+            }
+            throw new IllegalArgumentException("unknown field " + name + ", fields are "
+                    + Arrays.stream(values()).map(f -> f.name).collect(Collectors.joining(", ")));
+        }
+    }
+
+    /**
+     * comparison operator
+     */
+    enum Operator {
+        EQ("="), NE("!="), LT("<"), LE("<="), GT(">"), GE(">=");
+
+        private final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        private boolean holds(int comparison) {
+            switch (this) {
+                case EQ: return comparison == 0;
+                case NE: return comparison != 0;
+                case LT: return comparison < 0;
+                case LE: return comparison <= 0;
+                case GT: return comparison > 0;
+                default: return comparison >= 0;
+            }
+        }
+
+        private static Operator of(String symbol) {
+            for (Operator operator : values()) {
+                if (operator.symbol.equals(symbol)) {
+                    return operator;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * part of query checked on marine
+     */
+    interface Condition {
+        boolean test(Long key, SpaceMarine marine);
+
+        /**
+         * the same check made on columns of a row, without materializing its marine
+         */
+        boolean testRow(ColumnarMarineMap columns, int row);
+    }
+
+    /**
+     * field compared with value
+     */
+    static class Comparison implements Condition {
+        private final Field field;
+        private final Operator operator;
+        private final Object value;
+
+        private Comparison(Field field, Operator operator, Object value) {
+            this.field = field;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        @Override
+        public boolean test(Long key, SpaceMarine marine) {
+            return matches(field.getter.apply(key, marine));
+        }
+
+        /**
+         * numbers are compared as primitives, the same way as their boxes compare
+         */
+        @Override
+        public boolean testRow(ColumnarMarineMap columns, int row) {
+            switch (field) {
+                case KEY: return operator.holds(Long.compare(columns.key(row), (Long) value));
+                case ID: return operator.holds(Long.compare(columns.id(row), (Long) value));
+                case X: return operator.holds(Double.compare(columns.x(row), (Double) value));
+                case Y: return operator.holds(Double.compare(columns.y(row), (Double) value));
+                case CREATION_DATE: return operator.holds(Long.compare(DateCodec.day(columns.creationTime(row)), (Long) value));
+                case HEALTH: return operator.holds(Float.compare(columns.health(row), (Float) value));
+                default: return matches(field.column.apply(columns, row));
+            }
+        }
+
+        /**
+         * @param actual value of field, null if marine has none
+         * @return true if value of field fits comparison, null is only equal to null and isn't ordered
+         */
+        @SuppressWarnings("unchecked")
+        private boolean matches(Object actual) {
+            if (value == null) {
+                return (actual == null) == (operator == Operator.EQ);
+            }
+            if (actual == null) {
+                return operator == Operator.NE;
+            }
+            return operator.holds(((Comparable<Object>) actual).compareTo(value));
+        }
+
+        @Override
+        public String toString() {
+            String text;
+            if (value == null) {
+                text = "null";
+            }
+            else if (field == Field.CREATION_DATE) {
+                text = DateCodec.format(DateCodec.startOfDay((Long) value));
+                if (DateCodec.day(DateCodec.parse(text)) != (Long) value) {
+                    // two-digit year would be read back in another century
+                    LocalDate date = LocalDate.ofEpochDay((Long) value);
+                    text = String.format("%02d-%02d-%d", date.getDayOfMonth(), date.getMonthValue(), date.getYear());
+                }
+            }
+            else if (value instanceof String && (((String) value).isEmpty() || ((String) value).matches(".*[\\s()=!<>\"].*")
+                    || Arrays.asList("null", "and", "or").contains(((String) value).toLowerCase()))) {
+                text = '"' + ((String) value).replace("\"", "\\\"") + '"';
+            }
+            else {
+                text = value.toString();
+            }
+            return field.name + " " + operator.symbol + " " + text;
+        }
+    }
+
+    /**
+     * conditions joined with and or with or
+     */
+    static class Junction implements Condition {
+        private final boolean and;
+        private final List<Condition> parts;
+
+        private Junction(boolean and, List<Condition> parts) {
+            this.and = and;
+            this.parts = parts;
+        }
+
+        @Override
+        public boolean test(Long key, SpaceMarine marine) {
+            for (Condition part : parts) {
+                if (part.test(key, marine) != and) {
+                    return !and;
+                }
+            }
+            return and;
+        }
+
+        @Override
+        public boolean testRow(ColumnarMarineMap columns, int row) {
+            for (Condition part : parts) {
+                if (part.testRow(columns, row) != and) {
+                    return !and;
+                }
+            }
+            return and;
+        }
+
+        @Override
+        public String toString() {
+            return parts.stream().map(p -> p instanceof Junction ? "(" + p + ")" : p.toString())
+                    .collect(Collectors.joining(and ? " and " : " or "));
+        }
+    }
+
+    /**
+     * word of query, quoted words are never keywords or operators
+     */
+    private static class Token {
+        private final String text;
+        private final boolean quoted;
+
+        private Token(String text, boolean quoted) {
+            this.text = text;
+            this.quoted = quoted;
+        }
+
+        private boolean is(String word) {
+            return !quoted && text.equalsIgnoreCase(word);
+        }
+    }
+
+    private final Condition condition;
+
+    private Query(Condition condition) {
+        this.condition = condition;
+    }
+
+    /**
+     * @param text of query
+     * @return parsed query
+     * @throws IllegalArgumentException with what is wrong if text is not a query
+     */
+    public static Query parse(String text) {
+        Parser parser = new Parser(tokens(text));
+        Condition condition = parser.or();
+        if (parser.position < parser.tokens.size()) {
+            throw new IllegalArgumentException("unexpected " + parser.tokens.get(parser.position).text);
+        }
+        return new Query(condition);
+    }
+
+    private static List<Token> tokens(String text) {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            }
+            else if (c == '(' || c == ')') {
+                tokens.add(new Token(String.valueOf(c), false));
+                i++;
+            }
+            else if (c == '=' || c == '!' || c == '<' || c == '>') {
+                int start = i++;
+                if (i < text.length() && text.charAt(i) == '=') {
+                    i++;
+                }
+                tokens.add(new Token(text.substring(start, i), false));
+            }
+            else if (c == '"') {
+                StringBuilder word = new StringBuilder();
+                i++;
+                while (i < text.length() && text.charAt(i) != '"') {
+                    if (text.charAt(i) == '\\' && i + 1 < text.length()) {
+                        i++;
+                    }
+                    word.append(text.charAt(i++));
+                }
+                if (i == text.length()) {
+                    throw new IllegalArgumentException("unclosed quote");
+                }
+                i++;
+                tokens.add(new Token(word.toString(), true));
+            }
+            else {
+                int start = i;
+                while (i < text.length() && !Character.isWhitespace(text.charAt(i)) && "()=!<>\"".indexOf(text.charAt(i)) == -1) {
+                    i++;
+                }
+                tokens.add(new Token(text.substring(start, i), false));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * recursive descent over tokens: or of ands of comparisons or bracketed queries
+     */
+    private static class Parser {
+        private final List<Token> tokens;
+        private int position = 0;
+
+        private Parser(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        private Condition or() {
+            List<Condition> parts = new ArrayList<>();
+            parts.add(and());
+            while (peek() != null && peek().is("or")) {
+                position++;
+                parts.add(and());
+            }
+            return parts.size() == 1 ? parts.get(0) : new Junction(false, parts);
+        }
+
+        private Condition and() {
+            List<Condition> parts = new ArrayList<>();
+            parts.add(primary());
+            while (peek() != null && peek().is("and")) {
+                position++;
+                parts.add(primary());
+            }
+            return parts.size() == 1 ? parts.get(0) : new Junction(true, parts);
+        }
+
+        private Condition primary() {
+            Token token = next("field or (");
+            if (token.is("(")) {
+                Condition inner = or();
+                if (!next(")").is(")")) {
+                    throw new IllegalArgumentException(") expected");
+                }
+                return inner;
+            }
+            Field field = Field.named(token.text);
+            Token symbol = next("operator");
+            Operator operator = symbol.quoted ? null : Operator.of(symbol.text);
+            if (operator == null) {
+                throw new IllegalArgumentException("operator expected after " + field.name + ", got " + symbol.text);
+            }
+            Token value = next("value");
+            if (value.is("null")) {
+                if (!field.nullable) {
+                    throw new IllegalArgumentException(field.name + " is never null");
+                }
+                if (operator != Operator.EQ && operator != Operator.NE) {
+                    throw new IllegalArgumentException("null can only be compared with = and !=");
+                }
+                return new Comparison(field, operator, null);
+            }
+            if (!value.quoted && (value.text.equals("(") || value.text.equals(")") || Operator.of(value.text) != null)) {
+                throw new IllegalArgumentException("value expected after " + field.name + " " + operator.symbol);
+            }
+            try {
+                return new Comparison(field, operator, field.parser.apply(value.text));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("invalid " + field.name + " " + value.text);
+            }
+        }
+
+        private Token peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+
+        private Token next(String expected) {
+            if (position == tokens.size()) {
+                throw new IllegalArgumentException(expected + " expected at the end");
+            }
+            return tokens.get(position++);
+        }
+    }
+
+    /**
+     * bounds of an ordered field narrowed by comparisons joined with and, null bound is open
+     * @param <T> type of field
+     */
+    private static class Range<T extends Comparable<T>> {
+        private T low;
+        private boolean lowInclusive = true;
+        private T high;
+        private boolean highInclusive = true;
+        private final List<Comparison> used = new ArrayList<>();
+
+        @SuppressWarnings("unchecked")
+        private void narrow(Comparison comparison) {
+            T value = (T) comparison.value;
+            Operator operator = comparison.operator;
+            if (operator == Operator.EQ || operator == Operator.GT || operator == Operator.GE) {
+                int c = low == null ? 1 : value.compareTo(low);
+                if (c > 0 || c == 0 && operator == Operator.GT) {
+                    low = value;
+                    lowInclusive = operator != Operator.GT;
+                }
+            }
+            if (operator == Operator.EQ || operator == Operator.LT || operator == Operator.LE) {
+                int c = high == null ? -1 : value.compareTo(high);
+                if (c < 0 || c == 0 && operator == Operator.LT) {
+                    high = value;
+                    highInclusive = operator != Operator.LT;
+                }
+            }
+            used.add(comparison);
+        }
+
+        private boolean empty() {
+            if (low == null || high == null) {
+                return false;
+            }
+            int c = low.compareTo(high);
+            return c > 0 || c == 0 && !(lowInclusive && highInclusive);
+        }
+
+        private boolean point() {
+            return low != null && high != null && low.compareTo(high) == 0 && lowInclusive && highInclusive;
+        }
+
+        private String describe() {
+            return used.stream().map(Comparison::toString).collect(Collectors.joining(" and "));
+        }
+    }
+
+    /**
+     * way of walking marines chosen for query
+     */
+    public static class Plan {
+        private final String access;
+        private final long estimate;
+        private final Consumer<BiConsumer<Long, SpaceMarine>> walk;
+
+        /**
+         * store whose columns are checked instead of walking marines, null if marines are walked
+         */
+        private final ColumnarMarineMap columns;
+
+        private Plan(String access, long estimate, Consumer<BiConsumer<Long, SpaceMarine>> walk) {
+            this(access, estimate, walk, null);
+        }
+
+        private Plan(String access, long estimate, Consumer<BiConsumer<Long, SpaceMarine>> walk, ColumnarMarineMap columns) {
+            this.access = access;
+            this.estimate = estimate;
+            this.walk = walk;
+            this.columns = columns;
+        }
+
+        @Override
+        public String toString() {
+            return access + ": " + estimate + " marines";
+        }
+    }
+
+    /**
+     * @param marines collection to query, must not change until the plan is run
+     * @return all ways of walking marines that fit the query, the cheapest first, walking the whole collection is always among them
+     */
+    public List<Plan> plans(MarineCollection marines) {
+        List<Condition> conjuncts = condition instanceof Junction && ((Junction) condition).and
+                ? ((Junction) condition).parts : List.of(condition);
+        Range<Long> keys = new Range<>();
+        Range<Float> health = new Range<>();
+        Long id = null;
+        Comparison idComparison = null;
+        Set<AstartesCategory> categories = EnumSet.allOf(AstartesCategory.class);
+        boolean withoutCategory = true;
+        List<Comparison> categoryComparisons = new ArrayList<>();
+        for (Condition part : conjuncts) {
+            if (!(part instanceof Comparison)) {
+                continue;
+            }
+            Comparison comparison = (Comparison) part;
+            if (comparison.field == Field.KEY && comparison.operator != Operator.NE) {
+                keys.narrow(comparison);
+            }
+            else if (comparison.field == Field.HEALTH && comparison.operator != Operator.NE) {
+                health.narrow(comparison);
+            }
+            else if (comparison.field == Field.ID && comparison.operator == Operator.EQ && idComparison == null) {
+                id = (Long) comparison.value;
+                idComparison = comparison;
+            }
+            else if (comparison.field == Field.CATEGORY) {
+                categories.removeIf(c -> !comparison.matches(c));
+                withoutCategory &= comparison.matches(null);
+                categoryComparisons.add(comparison);
+            }
+        }
+
+        List<Plan> plans = new ArrayList<>();
+        // scan goes first so it wins ties, index isn't worth it when it walks as many marines
+        ColumnarMarineMap columns = marines.columns();
+        plans.add(columns == null ? new Plan("scan", marines.size(), marines::forEach)
+                : new Plan("column scan", marines.size(), marines::forEach, columns));
+        if (keys.empty() || health.empty()) {
+            plans.add(new Plan("nothing, " + (keys.empty() ? keys : health).describe() + " can't hold", 0, action -> {}));
+        }
+        if (keys.point()) {
+            Long key = keys.low;
+            plans.add(new Plan("key lookup " + keys.describe(), marines.containsKey(key) ? 1 : 0, action -> {
+                SpaceMarine marine = marines.get(key);
+                if (marine != null) {
+                    action.accept(key, marine);
+                }
+            }));
+        }
+        else if (!keys.used.isEmpty() && !keys.empty()) {
+            Long low = keys.low;
+            Long high = keys.high;
+            boolean lowInclusive = keys.lowInclusive;
+            boolean highInclusive = keys.highInclusive;
+            plans.add(new Plan("key range " + keys.describe() + ", estimated", marines.estimateKeysBetween(low, high),
+                    action -> marines.forEachKeyBetween(low, lowInclusive, high, highInclusive, action)));
+        }
+        if (idComparison != null) {
+            Long key = marines.keyOfId(id);
+            plans.add(new Plan("id index " + idComparison, key == null ? 0 : 1, action -> {
+                if (key != null) {
+                    action.accept(key, marines.get(key));
+                }
+            }));
+        }
+        if (!health.used.isEmpty() && !health.empty()) {
+            Float low = health.low;
+            Float high = health.high;
+            boolean lowInclusive = health.lowInclusive;
+            boolean highInclusive = health.highInclusive;
+            plans.add(new Plan("health index " + health.describe(), marines.countHealthBetween(low, lowInclusive, high, highInclusive),
+                    action -> marines.forEachHealthBetween(low, lowInclusive, high, highInclusive, action)));
+        }
+        if (!categoryComparisons.isEmpty()) {
+            boolean withNull = withoutCategory;
+            plans.add(new Plan("category index " + categoryComparisons.stream().map(Comparison::toString).collect(Collectors.joining(" and ")),
+                    marines.countCategories(categories, withNull), action -> marines.forEachWithCategories(categories, withNull, action)));
+        }
+        plans.sort((a, b) -> Long.compare(a.estimate, b.estimate));
+        return plans;
+    }
+
+    /**
+     * walk marines by plan and pass on the ones matching query
+     * @param plan way of walking marines, one of {@link #plans}
+     * @param action for every matching marine
+     * @return number of walked marines
+     */
+    public long run(Plan plan, BiConsumer<Long, SpaceMarine> action) {
+        if (plan.columns != null) {
+            return plan.columns.forEachRowMatching(row -> condition.testRow(plan.columns, row), action);
+        }
+        long[] walked = new long[1];
+        plan.walk.accept((key, marine) -> {
+            walked[0]++;
+            if (condition.test(key, marine)) {
+                action.accept(key, marine);
+            }
+        });
+        return walked[0];
+    }
+
+    @Override
+    public String toString() {
+        return condition.toString();
+    }
+}
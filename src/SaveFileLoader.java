@@ -0,0 +1,310 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * loader of save file, reads it through file channel in big blocks
+ * and cuts lines straight out of the buffer
+ */
+public class SaveFileLoader {
+
+    /**
+     * handler of one line of save file
+     */
+    public interface LineHandler {
+        /**
+         * @param lineNumber number of line starting from 1
+         * @param line text of line without line break
+         */
+        void accept(int lineNumber, String line);
+    }
+
+    /**
+     * parser of one line of save file, must be safe to call from several threads
+     * @param <T> type of parsed record
+     */
+    public interface LineParser<T> {
+        /**
+         * @param line text of line without line break
+         * @return parsed record
+         * @throws CustomFileException with description of bad line
+         */
+        T parse(String line) throws CustomFileException;
+    }
+
+    /**
+     * records and errors of one part of file
+     * @param <T> type of parsed record
+     */
+    private static class Chunk<T> {
+        private final List<T> records = new ArrayList<>();
+        private final Map<Integer, String> errors = new LinkedHashMap<>();
+        private int lines = 0;
+        private boolean stopped = false;
+    }
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final long MIN_CHUNK_SIZE = 1 << 20;
+
+    private static final long MAX_CHUNK_SIZE = 64 << 20;
+
+    private final String path;
+
+    private final Charset charset = Charset.defaultCharset();
+
+    private long bytes = 0;
+
+    private int rows = 0;
+
+    private long nanos = 0;
+
+    /**
+     * standart constructor
+     * @param path of save file
+     */
+    public SaveFileLoader(String path) {
+        this.path = path;
+    }
+
+    /**
+     * read all lines of file until the end or the first empty line
+     * @param handler called for every line
+     * @throws CustomFileException if file can't be read
+     */
+    public void load(LineHandler handler) throws CustomFileException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            int scanned = 0;
+            while (true) {
+                int read = channel.read(buffer);
+                if (read > 0) {
+                    bytes += read;
+                }
+                byte[] array = buffer.array();
+                int end = buffer.position();
+                int lineStart = 0;
+                for (int p = scanned; p < end; p++) {
+                    if (array[p] == '\n') {
+                        if (p == lineStart) {
+                            return;
+                        }
+                        handler.accept(++rows, new String(array, lineStart, p - lineStart, charset));
+                        lineStart = p + 1;
+                    }
+                }
+                if (read == -1) {
+                    if (lineStart < end) {
+                        handler.accept(++rows, new String(array, lineStart, end - lineStart, charset));
+                    }
+                    return;
+                }
+                buffer.limit(end).position(lineStart);
+                buffer.compact();
+                scanned = buffer.position();
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    bigger.put(buffer);
+                    buffer = bigger;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            throw CustomFileException.notFound();
+        } catch (IOException e) {
+            throw CustomFileException.readProblem();
+        } finally {
+            nanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * parse file on the common fork-join pool, file is cut into parts on line breaks,
+     * records and errors are handed over in the same order and with the same line numbers as in {@link #load}
+     * @param parser of one line, called from pool threads
+     * @param onRecord called for every parsed record in order of lines
+     * @param onError called for every bad line with its number and message
+     * @param <T> type of parsed record
+     * @throws CustomFileException if file can't be read
+     */
+    public <T> void loadParallel(LineParser<T> parser, Consumer<T> onRecord, LineHandler onError) throws CustomFileException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int parallelism = ForkJoinPool.getCommonPoolParallelism();
+            long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, size / (parallelism * 4L) + 1));
+            List<Callable<Chunk<T>>> tasks = new ArrayList<>();
+            long from = 0;
+            while (from < size) {
+                long to = nextLineStart(channel, Math.min(from + chunkSize, size), size);
+                long chunkFrom = from;
+                tasks.add(() -> parseChunk(channel, chunkFrom, to, parser));
+                from = to;
+            }
+            bytes = size;
+            for (Future<Chunk<T>> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+                Chunk<T> chunk = future.get();
+                chunk.records.forEach(onRecord);
+                int offset = rows;
+                chunk.errors.forEach((i, message) -> onError.accept(offset + i, message));
+                rows += chunk.lines;
+                if (chunk.stopped) {
+                    return;
+                }
+            }
+        } catch (NoSuchFileException e) {
+            throw CustomFileException.notFound();
+        } catch (IOException | ExecutionException e) {
+            throw CustomFileException.readProblem();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw CustomFileException.readProblem();
+        } finally {
+            nanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * find the beginning of the line after given position
+     * @param channel of file
+     * @param position to search from
+     * @param size of file
+     * @return position right after the next line break or size of file
+     * @throws IOException
+     */
+    private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int p = 0; p < read; p++) {
+                if (buffer.get(p) == '\n') {
+                    return position + p + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * parse lines of one part of file
+     * @param channel of file
+     * @param from first byte of part
+     * @param to byte after the last one of part
+     * @param parser of one line
+     * @param <T> type of parsed record
+     * @return records and errors with line numbers counted from the beginning of part
+     * @throws IOException
+     */
+    private <T> Chunk<T> parseChunk(FileChannel channel, long from, long to, LineParser<T> parser) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        Chunk<T> chunk = new Chunk<>();
+        byte[] line = new byte[256];
+        int limit = buffer.limit();
+        int lineStart = 0;
+        for (int p = 0; p <= limit; p++) {
+            if (p < limit && buffer.get(p) != '\n') {
+                continue;
+            }
+            int length = p - lineStart;
+            if (length == 0) {
+                chunk.stopped = p < limit;
+                break;
+            }
+            if (line.length < length) {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+            buffer.get(lineStart, line, 0, length);
+            chunk.lines++;
+            try {
+                chunk.records.add(parser.parse(new String(line, 0, length, charset)));
+            } catch (CustomFileException e) {
+                chunk.errors.put(chunk.lines, e.getMessage());
+            }
+            lineStart = p + 1;
+        }
+        return chunk;
+    }
+
+    /**
+     * @return true if file starts with header of binary format
+     * @throws CustomFileException if file can't be read
+     */
+    public boolean isBinary() throws CustomFileException {
+        try (InputStream in = Files.newInputStream(Paths.get(path))) {
+            return MarineBinary.isBinary(in.readNBytes(MarineBinary.MAGIC.length));
+        } catch (NoSuchFileException e) {
+            throw CustomFileException.notFound();
+        } catch (IOException e) {
+            throw CustomFileException.readProblem();
+        }
+    }
+
+    /**
+     * read file in binary format, bad records are reported by their number starting from 1 like lines of text file,
+     * reading stops at record that is cut off or broken and the records before it are kept
+     * @param onRecord called for every good record in order
+     * @param onError called for every bad record with its number and message
+     * @throws CustomFileException if file can't be read or its header is broken
+     */
+    public void loadBinary(Consumer<Map.Entry<Long, SpaceMarine>> onRecord, LineHandler onError) throws CustomFileException {
+        long start = System.nanoTime();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(path)), BUFFER_SIZE))) {
+            bytes = Files.size(Paths.get(path));
+            int count = MarineBinary.readHeader(in);
+            while (rows < count) {
+                rows++;
+                try {
+                    onRecord.accept(MarineBinary.read(in));
+                } catch (CustomFileException e) {
+                    onError.accept(rows, e.getMessage());
+                }
+            }
+        } catch (NoSuchFileException e) {
+            throw CustomFileException.notFound();
+        } catch (EOFException e) {
+            onError.accept(rows, "file ends in the middle of record");
+        } catch (MarineBinary.BrokenRecordException e) {
+            onError.accept(rows, e.getMessage() + ", records after it can't be read");
+        } catch (IOException e) {
+            throw CustomFileException.readProblem();
+        } finally {
+            nanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * throughput of the last load
+     * @return line with rows, size, time and speed
+     */
+    public String report() {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        double megabytes = bytes / (1024.0 * 1024.0);
+        return String.format("loaded %d rows (%.1f MB) in %d ms: %.0f rows/s, %.1f MB/s",
+                rows, megabytes, nanos / 1_000_000, rows / seconds, megabytes / seconds);
+    }
+}
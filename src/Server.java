@@ -0,0 +1,73 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.NoSuchElementException;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * server giving many clients access to one lab over local tcp socket, every client gets its own thread
+ */
+public class Server {
+
+    private final Lab lab;
+
+    private final int port;
+
+    private final Charset charset = Charset.defaultCharset();
+
+    /**
+     * standart constructor
+     * @param lab with loaded marines
+     * @param port to listen on
+     */
+    public Server(Lab lab, int port) {
+        this.lab = lab;
+        this.port = port;
+    }
+
+    /**
+     * accept clients until the process is stopped
+     * @throws IOException if socket can't be opened
+     */
+    public void run() throws IOException {
+        ExecutorService clients = newClientExecutor();
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("listening on port " + server.getLocalPort());
+            while (true) {
+                Socket socket = server.accept();
+                clients.execute(() -> serve(socket));
+            }
+        } finally {
+            clients.shutdown();
+        }
+    }
+
+    /**
+     * run commands of one client until it exits or disconnects
+     * @param socket of client
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             Scanner scanner = new Scanner(s.getInputStream(), charset);
+             PrintStream out = new PrintStream(new BufferedOutputStream(s.getOutputStream()), false, charset)) {
+            lab.interact(scanner, out, false);
+        } catch (IOException | NoSuchElementException ignored) {}
+    }
+
+    /**
+     * @return executor with a virtual thread per client where the runtime has them, otherwise a cached thread pool
+     */
+    private static ExecutorService newClientExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
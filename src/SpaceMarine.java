@@ -8,7 +8,7 @@ public class SpaceMarine implements Comparable<SpaceMarine>{
     private Long id; //Поле не может быть null, Значение поля должно быть больше 0, Значение этого поля должно быть уникальным, Значение этого поля должно генерироваться автоматически
     private String name; //Поле не может быть null, Строка не может быть пустой
     private Coordinates coordinates; //Поле не может быть null
-    private java.util.Date creationDate; //Поле не может быть null, Значение этого поля должно генерироваться автоматически
+    private long creationDate; //Поле не может быть null, Значение этого поля должно генерироваться автоматически
 
     public Long getId() {
         return id;
@@ -35,11 +35,18 @@ public class SpaceMarine implements Comparable<SpaceMarine>{
     }
 
     public Date getCreationDate() {
+        return new Date(creationDate);
+    }
+
+    /**
+     * @return creation date as epoch millis, without creating a Date
+     */
+    public long getCreationTime() {
         return creationDate;
     }
 
     public void setCreationDate(Date creationDate) {
-        this.creationDate = creationDate;
+        this.creationDate = creationDate.getTime();
     }
 
     public Float getHealth() {
@@ -93,14 +100,14 @@ public class SpaceMarine implements Comparable<SpaceMarine>{
      * @param id automatically generate
      * @param name of space marine
      * @param coordinates of space marine
-     * @param creationDate automatically generate
+     * @param creationDate automatically generate, epoch millis
      * @param health of space marine (we sort for health)
      * @param category of space marine
      * @param weaponType of space marine
      * @param meleeWeapon of space marine
      * @param chapter of space marine
      */
-    public SpaceMarine(Long id, String name, Coordinates coordinates, Date creationDate, Float health, AstartesCategory category, Weapon weaponType, MeleeWeapon meleeWeapon, Chapter chapter) {
+    public SpaceMarine(Long id, String name, Coordinates coordinates, long creationDate, Float health, AstartesCategory category, Weapon weaponType, MeleeWeapon meleeWeapon, Chapter chapter) {
         this.id = id;
         this.name = name;
         this.coordinates = coordinates;
@@ -0,0 +1,303 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.LongConsumer;
+
+/**
+ * index of keys by coordinates: plane is cut into square cells and every cell keeps keys and coordinates of its points
+ * in primitive arrays, so queries check coordinates without touching marines. Size of cells follows the number and
+ * spread of points, the grid is rebuilt whenever the number of points doubled or halved since the last build
+ */
+public class SpatialGrid {
+
+    /**
+     * points per cell the grid is built for if they are spread evenly
+     */
+    private static final int POINTS_PER_CELL = 16;
+
+    /**
+     * cells further from origin are merged into the outermost ones
+     */
+    private static final long MAX_CELL = 1 << 30;
+
+    /**
+     * points of one cell
+     */
+    private static class Cell {
+        private long[] keys = new long[4];
+        private double[] xs = new double[4];
+        private double[] ys = new double[4];
+        private int size = 0;
+
+        private void add(long key, double x, double y) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                xs = Arrays.copyOf(xs, size * 2);
+                ys = Arrays.copyOf(ys, size * 2);
+            }
+            keys[size] = key;
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+        }
+
+        private boolean remove(long key) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i] == key) {
+                    size--;
+                    keys[i] = keys[size];
+                    xs[i] = xs[size];
+                    ys[i] = ys[size];
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private Map<Long, Cell> cells = new HashMap<>();
+
+    private double cellSize = 1;
+
+    private int size = 0;
+
+    private int builtFor = 0;
+
+    /**
+     * number of points in cells merged at the edge of the grid, nearest search can't bound distance to them
+     */
+    private int outliers = 0;
+
+    /**
+     * @param key of marine
+     * @param x coordinate
+     * @param y coordinate
+     */
+    public void add(long key, double x, double y) {
+        long cx = cell(x);
+        long cy = cell(y);
+        cells.computeIfAbsent(id(cx, cy), id -> new Cell()).add(key, x, y);
+        if (edge(cx) || edge(cy)) {
+            outliers++;
+        }
+        size++;
+        if (size >= Math.max(2L * builtFor, POINTS_PER_CELL * 4)) {
+            rebuild();
+        }
+    }
+
+    /**
+     * @param key of marine
+     * @param x coordinate it was added with
+     * @param y coordinate it was added with
+     */
+    public void remove(long key, double x, double y) {
+        long cx = cell(x);
+        long cy = cell(y);
+        Long id = id(cx, cy);
+        Cell cell = cells.get(id);
+        if (cell == null || !cell.remove(key)) {
+            return;
+        }
+        if (cell.size == 0) {
+            cells.remove(id);
+        }
+        if (edge(cx) || edge(cy)) {
+            outliers--;
+        }
+        size--;
+        if (size < builtFor / 2) {
+            rebuild();
+        }
+    }
+
+    public void clear() {
+        cells = new HashMap<>();
+        cellSize = 1;
+        size = 0;
+        builtFor = 0;
+        outliers = 0;
+    }
+
+    /**
+     * choose size of cells for the points there are now and put them into new cells
+     */
+    private void rebuild() {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (Cell cell : cells.values()) {
+            for (int i = 0; i < cell.size; i++) {
+                minX = Math.min(minX, cell.xs[i]);
+                maxX = Math.max(maxX, cell.xs[i]);
+                minY = Math.min(minY, cell.ys[i]);
+                maxY = Math.max(maxY, cell.ys[i]);
+            }
+        }
+        double width = maxX - minX;
+        double height = maxY - minY;
+        double side = Math.max(width, height);
+        double wanted = Math.sqrt(Math.max(width, side / size) * Math.max(height, side / size) * POINTS_PER_CELL / Math.max(size, 1));
+        double fitting = Math.max(Math.max(Math.abs(minX), Math.abs(maxX)), Math.max(Math.abs(minY), Math.abs(maxY))) / (MAX_CELL - 1);
+        double newSize = Math.max(wanted, fitting);
+        if (!(newSize > 0) || Double.isInfinite(newSize)) {
+            newSize = side > 0 && !Double.isInfinite(side) ? side : 1;
+        }
+        Map<Long, Cell> old = cells;
+        cells = new HashMap<>();
+        cellSize = newSize;
+        size = 0;
+        outliers = 0;
+        builtFor = Integer.MAX_VALUE;
+        old.values().forEach(cell -> {
+            for (int i = 0; i < cell.size; i++) {
+                add(cell.keys[i], cell.xs[i], cell.ys[i]);
+            }
+        });
+        builtFor = size;
+    }
+
+    private long cell(double coordinate) {
+        double c = Math.floor(coordinate / cellSize);
+        return (long) Math.max(-MAX_CELL, Math.min(MAX_CELL, c));
+    }
+
+    private static boolean edge(long cell) {
+        return cell == MAX_CELL || cell == -MAX_CELL;
+    }
+
+    /**
+     * @return number of cell, multiplied by odd constant so hash codes of neighbour cells don't collide
+     */
+    private static Long id(long cx, long cy) {
+        return ((cx << 32) ^ (cy & 0xffffffffL)) * 0x9E3779B97F4A7C15L;
+    }
+
+    /**
+     * @param action for key of every point inside rectangle, edges included, in no particular order
+     */
+    public void forEachWithin(double x1, double y1, double x2, double y2, LongConsumer action) {
+        double minX = Math.min(x1, x2);
+        double maxX = Math.max(x1, x2);
+        double minY = Math.min(y1, y2);
+        double maxY = Math.max(y1, y2);
+        long fromX = cell(minX);
+        long toX = cell(maxX);
+        long fromY = cell(minY);
+        long toY = cell(maxY);
+        if ((double) (toX - fromX + 1) * (toY - fromY + 1) > cells.size()) {
+            cells.values().forEach(cell -> within(cell, minX, minY, maxX, maxY, action));
+            return;
+        }
+        for (long cx = fromX; cx <= toX; cx++) {
+            for (long cy = fromY; cy <= toY; cy++) {
+                Cell cell = cells.get(id(cx, cy));
+                if (cell != null) {
+                    within(cell, minX, minY, maxX, maxY, action);
+                }
+            }
+        }
+    }
+
+    private static void within(Cell cell, double minX, double minY, double maxX, double maxY, LongConsumer action) {
+        for (int i = 0; i < cell.size; i++) {
+            if (cell.xs[i] >= minX && cell.xs[i] <= maxX && cell.ys[i] >= minY && cell.ys[i] <= maxY) {
+                action.accept(cell.keys[i]);
+            }
+        }
+    }
+
+    /**
+     * point found by nearest search
+     */
+    private static class Neighbour {
+        private final double distance;
+        private final long key;
+
+        private Neighbour(double distance, long key) {
+            this.distance = distance;
+            this.key = key;
+        }
+
+        private static int closer(Neighbour a, Neighbour b) {
+            return a.distance != b.distance ? Double.compare(a.distance, b.distance) : Long.compare(a.key, b.key);
+        }
+    }
+
+    /**
+     * find points closest to given one by walking rings of cells around it, stops as soon as no cell further away
+     * can hold a closer point
+     * @param k number of points
+     * @param x coordinate
+     * @param y coordinate
+     * @return keys of at most k closest points, closest first, equally close ones by key
+     */
+    public long[] nearest(int k, double x, double y) {
+        // farthest of the best points so far on top
+        PriorityQueue<Neighbour> best = new PriorityQueue<>(Math.min(k, size) + 1, (a, b) -> Neighbour.closer(b, a));
+        long cx = cell(x);
+        long cy = cell(y);
+        if (outliers > 0 || edge(cx) || edge(cy)) {
+            cells.values().forEach(cell -> nearest(cell, k, x, y, best));
+        }
+        else {
+            int visited = 0;
+            for (long ring = 0; visited < cells.size(); ring++) {
+                if ((2 * ring + 1) * (2 * ring + 1) > 4L * cells.size()) {
+                    // rings got bigger than the grid, checking every cell is cheaper
+                    best.clear();
+                    cells.values().forEach(cell -> nearest(cell, k, x, y, best));
+                    break;
+                }
+                for (long i = -ring; i <= ring; i++) {
+                    visited += nearest(cx + i, cy - ring, k, x, y, best);
+                    if (ring > 0) {
+                        visited += nearest(cx + i, cy + ring, k, x, y, best);
+                    }
+                }
+                for (long j = -ring + 1; j <= ring - 1; j++) {
+                    visited += nearest(cx - ring, cy + j, k, x, y, best);
+                    visited += nearest(cx + ring, cy + j, k, x, y, best);
+                }
+                double reach = ring * cellSize;
+                if (best.size() == k && best.peek().distance < reach * reach) {
+                    break;
+                }
+            }
+        }
+        List<Neighbour> found = new ArrayList<>(best);
+        found.sort(Neighbour::closer);
+        return found.stream().mapToLong(n -> n.key).toArray();
+    }
+
+    /**
+     * @return 1 if there is such cell, 0 if not
+     */
+    private int nearest(long cx, long cy, int k, double x, double y, PriorityQueue<Neighbour> best) {
+        Cell cell = cells.get(id(cx, cy));
+        if (cell == null) {
+            return 0;
+        }
+        nearest(cell, k, x, y, best);
+        return 1;
+    }
+
+    private static void nearest(Cell cell, int k, double x, double y, PriorityQueue<Neighbour> best) {
+        for (int i = 0; i < cell.size; i++) {
+            double dx = cell.xs[i] - x;
+            double dy = cell.ys[i] - y;
+            Neighbour point = new Neighbour(dx * dx + dy * dy, cell.keys[i]);
+            if (best.size() < k) {
+                best.add(point);
+            }
+            else if (Neighbour.closer(point, best.peek()) < 0) {
+                best.poll();
+                best.add(point);
+            }
+        }
+    }
+}
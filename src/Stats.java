@@ -0,0 +1,249 @@
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * counters and latency histograms of commands, durations of loading and saving and size of collection over time,
+ * every record is also sent as a JFR event when a recording is running, safe to use from several threads
+ */
+public class Stats {
+
+    /**
+     * histogram buckets per power of two, so percentiles are off by at most a quarter
+     */
+    private static final int SUB_BUCKETS = 4;
+
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private static final int SIZE_SAMPLES = 20;
+
+    private static final long SIZE_SAMPLE_INTERVAL = 1000;
+
+    private final long started = System.currentTimeMillis();
+
+    private final Map<String, Histogram> commands = new ConcurrentSkipListMap<>();
+
+    private final Map<String, Timing> io = new ConcurrentHashMap<>();
+
+    private final Deque<long[]> sizes = new ArrayDeque<>();
+
+    /**
+     * latency histogram of one command
+     */
+    private static class Histogram {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        private void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+            buckets.incrementAndGet(bucket(nanos));
+        }
+
+        /**
+         * @param fraction of calls, 0.99 for p99
+         * @return upper bound of bucket the percentile falls into, in nanos
+         */
+        private long percentile(double fraction) {
+            long rank = (long) Math.ceil(count.sum() * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= Math.max(rank, 1)) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    /**
+     * durations of loading or saving
+     */
+    private static class Timing {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private volatile long last;
+        private volatile int lastRows;
+    }
+
+    /**
+     * @param nanos duration
+     * @return index of histogram bucket
+     */
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(nanos, 0);
+        }
+        int power = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (power - 2)) & (SUB_BUCKETS - 1);
+        return power * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @param bucket index
+     * @return largest duration falling into bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int power = bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (power - 2)) - 1;
+    }
+
+    /**
+     * @param command name of command
+     * @param nanos time it took, without waiting for user input
+     * @param size of collection after it
+     */
+    public void command(String command, long nanos, int size) {
+        commands.computeIfAbsent(command, c -> new Histogram()).record(nanos);
+        sampleSize(size);
+        CommandEvent event = new CommandEvent();
+        if (event.shouldCommit()) {
+            event.command = command;
+            event.latency = nanos;
+            event.size = size;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param nanos time of reading save file and journal
+     * @param rows number of marines loaded
+     */
+    public void load(long nanos, int rows) {
+        timing("load", nanos, rows);
+        sampleSize(rows);
+        FileEvent event = new FileEvent();
+        if (event.shouldCommit()) {
+            event.operation = "load";
+            event.latency = nanos;
+            event.rows = rows;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param nanos time of writing save file
+     * @param rows number of marines saved
+     */
+    public void save(long nanos, int rows) {
+        timing("save", nanos, rows);
+        FileEvent event = new FileEvent();
+        if (event.shouldCommit()) {
+            event.operation = "save";
+            event.latency = nanos;
+            event.rows = rows;
+            event.commit();
+        }
+    }
+
+    private void timing(String operation, long nanos, int rows) {
+        Timing timing = io.computeIfAbsent(operation, o -> new Timing());
+        timing.count.incrementAndGet();
+        timing.total.addAndGet(nanos);
+        timing.last = nanos;
+        timing.lastRows = rows;
+    }
+
+    /**
+     * remember size of collection if the last sample is old enough, only the latest samples are kept
+     * @param size of collection
+     */
+    private void sampleSize(int size) {
+        long now = System.currentTimeMillis();
+        synchronized (sizes) {
+            long[] last = sizes.peekLast();
+            if (last != null && last[1] == size) {
+                return;
+            }
+            if (last != null && now - last[0] < SIZE_SAMPLE_INTERVAL) {
+                last[1] = size;
+                return;
+            }
+            if (sizes.size() == SIZE_SAMPLES) {
+                sizes.removeFirst();
+            }
+            sizes.addLast(new long[] {now, size});
+        }
+    }
+
+    /**
+     * @param out where to print all statistics
+     */
+    public void print(PrintStream out) {
+        long calls = commands.values().stream().mapToLong(h -> h.count.sum()).sum();
+        out.println("uptime " + (System.currentTimeMillis() - started) / 1000 + " s, " + calls + " commands");
+        out.printf("%-32s %8s %10s %10s %10s %10s%n", "command", "count", "total ms", "p50 ms", "p99 ms", "max ms");
+        commands.forEach((command, h) -> out.printf("%-32s %8d %10.1f %10.3f %10.3f %10.3f%n", command, h.count.sum(),
+                h.total.sum() / 1e6, h.percentile(0.5) / 1e6, h.percentile(0.99) / 1e6, h.max.get() / 1e6));
+        io.forEach((operation, t) -> out.printf("%s: %d times, last %d rows in %.1f ms, mean %.1f ms%n", operation,
+                t.count.get(), t.lastRows, t.last / 1e6, t.total.get() / 1e6 / t.count.get()));
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss");
+        StringBuilder line = new StringBuilder("collection size:");
+        synchronized (sizes) {
+            sizes.forEach(s -> line.append(' ').append(time.format(new Date(s[0]))).append('=').append(s[1]));
+        }
+        out.println(line);
+    }
+
+    /**
+     * JFR event of one command
+     */
+    @Name("lab.Command")
+    @Label("Command")
+    @Category("Lab")
+    @Description("command run on marines")
+    static class CommandEvent extends Event {
+        @Label("Command")
+        String command;
+
+        @Label("Latency")
+        @Timespan
+        long latency;
+
+        @Label("Collection Size")
+        int size;
+    }
+
+    /**
+     * JFR event of loading or saving marines
+     */
+    @Name("lab.File")
+    @Label("Load Or Save")
+    @Category("Lab")
+    @Description("marines read from or written to save file")
+    static class FileEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Latency")
+        @Timespan
+        long latency;
+
+        @Label("Rows")
+        int rows;
+    }
+}